@@ -0,0 +1,215 @@
+package org.mayoclinic.modeling.xsd;
+
+import org.apache.ws.commons.schema.*;
+
+import javax.xml.namespace.QName;
+import java.util.*;
+
+/**
+ * Names for the anonymous types of the elements and attributes of a schema, so they can be imported like named types.
+ *
+ * Anonymous types are hash-consed on their {@link TypeSignature}: structurally identical anonymous types (same content,
+ * documentation and referenced types) get the same name and import to one shared definition. A name is made from the
+ * place the structure is first found, e.g. Other_inline for the element inline of the type Other, or the element's own
+ * name for a global element. Types are visited in the graph's order, so the names don't depend on the order the types
+ * are generated in. Names that are already taken by a named type get a number.
+ */
+class AnonymousTypeTable {
+    private final XmlSchema schema;
+    private final Map<XmlSchemaType, QName> names;
+    private final Map<String, QName> namesBySignature;
+    private final Set<QName> usedNames;
+    // Anonymous types and global elements visited so far, the same objects are reached from every reference
+    private final Set<XmlSchemaObject> visited;
+
+    private AnonymousTypeTable(XmlSchema schema) {
+        this.schema = schema;
+        // Schema objects compare by content, anonymous types are told apart by identity
+        this.names = new IdentityHashMap<>();
+        this.namesBySignature = new HashMap<>();
+        this.usedNames = new HashSet<>();
+        this.visited = Collections.newSetFromMap(new IdentityHashMap<XmlSchemaObject, Boolean>());
+    }
+
+    public static AnonymousTypeTable build(XmlSchema schema, TypeDependencyGraph graph) {
+        AnonymousTypeTable table = new AnonymousTypeTable(schema);
+        table.usedNames.addAll(graph.getTypeNames());
+        for (QName typeName : graph.getTypeNames()) {
+            XmlSchemaType schemaType = graph.getSchemaType(typeName);
+            if (schemaType instanceof XmlSchemaComplexType) {
+                table.addComplexType((XmlSchemaComplexType)schemaType, typeName.getNamespaceURI(), typeName.getLocalPart());
+            }
+        }
+        return table;
+    }
+
+    public QName getName(XmlSchemaType anonymousType) {
+        QName name = names.get(anonymousType);
+        if (name == null) {
+            throw new IllegalArgumentException("Anonymous type is not used by any type of the schema.");
+        }
+        return name;
+    }
+
+    private void addAnonymousType(XmlSchemaType anonymousType, String namespace, String localName) {
+        if (!visited.add(anonymousType)) {
+            return;
+        }
+
+        String signature = TypeSignature.of(anonymousType).getText();
+        QName name = namesBySignature.get(signature);
+        if (name == null) {
+            name = createName(namespace, localName);
+            namesBySignature.put(signature, name);
+        }
+        names.put(anonymousType, name);
+
+        // Nested anonymous types are named after the structure they are in
+        if (anonymousType instanceof XmlSchemaComplexType) {
+            addComplexType((XmlSchemaComplexType)anonymousType, name.getNamespaceURI(), name.getLocalPart());
+        }
+    }
+
+    private QName createName(String namespace, String localName) {
+        QName name = new QName(namespace, localName);
+        for (int i = 2; !usedNames.add(name) || isNamedType(name); i++) {
+            name = new QName(namespace, localName + i);
+        }
+        return name;
+    }
+
+    // Named types the graph doesn't reach still own their name
+    private boolean isNamedType(QName name) {
+        if (schema.getTypeByName(name) != null) {
+            return true;
+        }
+        return schema.getParent() != null && schema.getParent().getTypeByQName(name) != null;
+    }
+
+    // Walks the content the importer turns into elements (see XsdImporter.addContentElements)
+    private void addComplexType(XmlSchemaComplexType complexType, String namespace, String ownerName) {
+        if (complexType.getContentModel() != null) {
+            XmlSchemaContent content = complexType.getContentModel().getContent();
+            if (content instanceof XmlSchemaComplexContentRestriction) {
+                addAttributes(((XmlSchemaComplexContentRestriction)content).getAttributes(), namespace, ownerName);
+                addParticle(((XmlSchemaComplexContentRestriction)content).getParticle(), namespace, ownerName);
+            }
+            else if (content instanceof XmlSchemaComplexContentExtension) {
+                addAttributes(((XmlSchemaComplexContentExtension)content).getAttributes(), namespace, ownerName);
+                addParticle(((XmlSchemaComplexContentExtension)content).getParticle(), namespace, ownerName);
+            }
+            else if (content instanceof XmlSchemaSimpleContentRestriction) {
+                addAttributes(((XmlSchemaSimpleContentRestriction)content).getAttributes(), namespace, ownerName);
+            }
+            else if (content instanceof XmlSchemaSimpleContentExtension) {
+                addAttributes(((XmlSchemaSimpleContentExtension)content).getAttributes(), namespace, ownerName);
+            }
+        }
+        else {
+            addAttributes(complexType.getAttributes(), namespace, ownerName);
+            addParticle(complexType.getParticle(), namespace, ownerName);
+        }
+    }
+
+    private void addParticle(XmlSchemaParticle particle, String namespace, String ownerName) {
+        if (particle instanceof XmlSchemaElement) {
+            addElement((XmlSchemaElement)particle, namespace, ownerName);
+        }
+        else if (particle instanceof XmlSchemaSequence) {
+            for (XmlSchemaSequenceMember member : ((XmlSchemaSequence)particle).getItems()) {
+                if (member instanceof XmlSchemaParticle) {
+                    addParticle((XmlSchemaParticle)member, namespace, ownerName);
+                }
+            }
+        }
+        else if (particle instanceof XmlSchemaAll) {
+            for (XmlSchemaAllMember member : ((XmlSchemaAll)particle).getItems()) {
+                if (member instanceof XmlSchemaParticle) {
+                    addParticle((XmlSchemaParticle)member, namespace, ownerName);
+                }
+            }
+        }
+        else if (particle instanceof XmlSchemaChoice) {
+            for (XmlSchemaChoiceMember member : ((XmlSchemaChoice)particle).getItems()) {
+                if (member instanceof XmlSchemaElement) {
+                    addElement((XmlSchemaElement)member, namespace, ownerName);
+                }
+            }
+        }
+        else if (particle instanceof XmlSchemaGroupRef) {
+            addParticle(((XmlSchemaGroupRef)particle).getParticle(), namespace, ownerName);
+        }
+    }
+
+    private void addElement(XmlSchemaElement element, String namespace, String ownerName) {
+        if (element.isRef()) {
+            element = element.getRef().getTarget();
+            // A global element is named on its own, wherever it is referenced from
+            if (element == null || !visited.add(element)) {
+                return;
+            }
+            if (element.getSchemaType() != null && element.getSchemaType().isAnonymous()) {
+                addAnonymousType(element.getSchemaType(), namespaceOf(element.getQName(), namespace), localName(element.getName()));
+            }
+            return;
+        }
+
+        if (element.getSchemaType() != null && element.getSchemaType().isAnonymous()) {
+            addAnonymousType(element.getSchemaType(), namespace, ownerName + '_' + localName(element.getName()));
+        }
+    }
+
+    private void addAttributes(List<XmlSchemaAttributeOrGroupRef> attributes, String namespace, String ownerName) {
+        for (XmlSchemaAttributeOrGroupRef attribute : attributes) {
+            if (attribute instanceof XmlSchemaAttribute) {
+                addAttribute((XmlSchemaAttribute)attribute, namespace, ownerName);
+            }
+            else if (attribute instanceof XmlSchemaAttributeGroupRef) {
+                addAttributeGroup(((XmlSchemaAttributeGroupRef)attribute).getRef().getTarget(), namespace, ownerName);
+            }
+        }
+    }
+
+    private void addAttributeGroup(XmlSchemaAttributeGroup attributeGroup, String namespace, String ownerName) {
+        if (attributeGroup == null) {
+            return;
+        }
+
+        for (XmlSchemaAttributeGroupMember member : attributeGroup.getAttributes()) {
+            if (member instanceof XmlSchemaAttribute) {
+                addAttribute((XmlSchemaAttribute)member, namespace, ownerName);
+            }
+            else if (member instanceof XmlSchemaAttributeGroupRef) {
+                addAttributeGroup(((XmlSchemaAttributeGroupRef)member).getRef().getTarget(), namespace, ownerName);
+            }
+            else if (member instanceof XmlSchemaAttributeGroup) {
+                addAttributeGroup((XmlSchemaAttributeGroup)member, namespace, ownerName);
+            }
+        }
+    }
+
+    private void addAttribute(XmlSchemaAttribute attribute, String namespace, String ownerName) {
+        if (attribute.isRef()) {
+            attribute = attribute.getRef().getTarget();
+            if (attribute == null) {
+                return;
+            }
+            if (attribute.getSchemaType() != null && attribute.getSchemaType().isAnonymous()) {
+                addAnonymousType(attribute.getSchemaType(), namespaceOf(attribute.getQName(), namespace), localName(attribute.getName()));
+            }
+            return;
+        }
+
+        if (attribute.getSchemaType() != null && attribute.getSchemaType().isAnonymous()) {
+            addAnonymousType(attribute.getSchemaType(), namespace, ownerName + '_' + localName(attribute.getName()));
+        }
+    }
+
+    private static String namespaceOf(QName name, String defaultNamespace) {
+        return name != null ? name.getNamespaceURI() : defaultNamespace;
+    }
+
+    private static String localName(String name) {
+        return name != null ? name : "anonymous";
+    }
+}
@@ -0,0 +1,130 @@
+package org.mayoclinic.modeling.xsd;
+
+import java.util.*;
+
+/**
+ * The FHIR type each built-in XML Schema type maps to, for the whole built-in derivation tree (XML Schema 1.1 Part 2).
+ *
+ * Built-in types without a mapping of their own take the mapping of their nearest ancestor, e.g. int maps like
+ * integer and token like string. The mapping of every built-in type is worked out once, when the table is made, so
+ * lookups are a single map access. The default table is shared by every import; a table with overrides (see
+ * {@link XsdImportOptions#setBuiltInTypeMapping}) passes them on to the descendants of the overridden types the same way.
+ */
+final class BuiltInTypeTable {
+    // Built-in type -> the built-in type it is derived from, anyType is the root
+    private static final Map<String, String> BASE_TYPES;
+    static {
+        Map<String, String> baseTypes = new HashMap<>();
+        baseTypes.put("anySimpleType", "anyType");
+        baseTypes.put("anyAtomicType", "anySimpleType");
+        // List types
+        baseTypes.put("NMTOKENS", "anySimpleType");
+        baseTypes.put("IDREFS", "anySimpleType");
+        baseTypes.put("ENTITIES", "anySimpleType");
+        // Primitive types
+        for (String primitiveType : Arrays.asList("string", "boolean", "decimal", "float", "double", "duration", "dateTime", "time", "date",
+                "gYearMonth", "gYear", "gMonthDay", "gDay", "gMonth", "hexBinary", "base64Binary", "anyURI", "QName", "NOTATION")) {
+            baseTypes.put(primitiveType, "anyAtomicType");
+        }
+        // Derived from string
+        baseTypes.put("normalizedString", "string");
+        baseTypes.put("token", "normalizedString");
+        baseTypes.put("language", "token");
+        baseTypes.put("NMTOKEN", "token");
+        baseTypes.put("Name", "token");
+        baseTypes.put("NCName", "Name");
+        baseTypes.put("ID", "NCName");
+        baseTypes.put("IDREF", "NCName");
+        baseTypes.put("ENTITY", "NCName");
+        // Derived from decimal
+        baseTypes.put("integer", "decimal");
+        baseTypes.put("nonPositiveInteger", "integer");
+        baseTypes.put("negativeInteger", "nonPositiveInteger");
+        baseTypes.put("long", "integer");
+        baseTypes.put("int", "long");
+        baseTypes.put("short", "int");
+        baseTypes.put("byte", "short");
+        baseTypes.put("nonNegativeInteger", "integer");
+        baseTypes.put("unsignedLong", "nonNegativeInteger");
+        baseTypes.put("unsignedInt", "unsignedLong");
+        baseTypes.put("unsignedShort", "unsignedInt");
+        baseTypes.put("unsignedByte", "unsignedShort");
+        baseTypes.put("positiveInteger", "nonNegativeInteger");
+        // Derived from duration and dateTime
+        baseTypes.put("yearMonthDuration", "duration");
+        baseTypes.put("dayTimeDuration", "duration");
+        baseTypes.put("dateTimeStamp", "dateTime");
+        BASE_TYPES = Collections.unmodifiableMap(baseTypes);
+    }
+
+    // Built-in type -> FHIR type, for the built-in types that don't just map like their base type
+    private static final Map<String, String> DEFAULT_MAPPINGS;
+    static {
+        Map<String, String> mappings = new HashMap<>();
+        mappings.put("anyType", "Element"); // Not sure this is right...
+        mappings.put("anySimpleType", "Element");
+        mappings.put("anyAtomicType", "string");
+        mappings.put("NMTOKENS", "string");
+        mappings.put("IDREFS", "string");
+        mappings.put("ENTITIES", "string");
+        // FHIR's Duration is a quantity, an XML Schema duration (e.g. P1Y2M) is kept as its text
+        mappings.put("duration", "string");
+        mappings.put("dateTime", "dateTime");
+        mappings.put("gYear", "date");
+        mappings.put("gYearMonth", "date");
+        mappings.put("date", "date");
+        mappings.put("time", "time");
+        mappings.put("decimal", "decimal");
+        mappings.put("float", "decimal");
+        mappings.put("double", "decimal");
+        mappings.put("integer", "integer");
+        mappings.put("nonNegativeInteger", "unsignedInt");
+        mappings.put("positiveInteger", "positiveInt");
+        mappings.put("boolean", "boolean");
+        mappings.put("base64Binary", "base64Binary");
+        mappings.put("hexBinary", "string");
+        mappings.put("string", "string");
+        mappings.put("anyURI", "uri");
+        DEFAULT_MAPPINGS = Collections.unmodifiableMap(mappings);
+    }
+
+    public static final BuiltInTypeTable DEFAULT = new BuiltInTypeTable(Collections.<String, String>emptyMap());
+
+    // Every built-in type -> the FHIR type it maps to
+    private final Map<String, String> fhirTypeNames;
+
+    private BuiltInTypeTable(Map<String, String> overrides) {
+        Map<String, String> mappings = new HashMap<>(DEFAULT_MAPPINGS);
+        mappings.putAll(overrides);
+
+        Map<String, String> fhirTypeNames = new HashMap<>();
+        for (String typeName : getTypeNames()) {
+            String ancestor = typeName;
+            while (!mappings.containsKey(ancestor)) {
+                ancestor = BASE_TYPES.get(ancestor);
+            }
+            fhirTypeNames.put(typeName, mappings.get(ancestor));
+        }
+        this.fhirTypeNames = Collections.unmodifiableMap(fhirTypeNames);
+    }
+
+    // The default table if there are no overrides
+    public static BuiltInTypeTable withOverrides(Map<String, String> overrides) {
+        return overrides.isEmpty() ? DEFAULT : new BuiltInTypeTable(overrides);
+    }
+
+    public static boolean isBuiltInType(String typeName) {
+        return typeName.equals("anyType") || BASE_TYPES.containsKey(typeName);
+    }
+
+    private static Set<String> getTypeNames() {
+        Set<String> typeNames = new HashSet<>(BASE_TYPES.keySet());
+        typeNames.add("anyType");
+        return typeNames;
+    }
+
+    // The FHIR type the built-in type maps to, or null if it is not a built-in type
+    public String getFhirTypeName(String typeName) {
+        return fhirTypeNames.get(typeName);
+    }
+}
@@ -0,0 +1,243 @@
+package org.mayoclinic.modeling.xsd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Timings and counters for a conversion run, safe to update from the generation and writer threads.
+ *
+ * Wall phases are timed once by the thread driving the run. Worker phases are summed over every thread doing that
+ * kind of work, so with several threads they can add up to more than the wall time of the run.
+ */
+public class ConversionMetrics {
+    public enum Phase {
+        READ_SCHEMAS("readSchemas", false),
+        PRELOAD_FHIR_TYPES("preloadFhirTypes", false),
+        GENERATE("generate", false),
+        AWAIT_WRITES("awaitWrites", false),
+        UPDATE_CACHE("updateCache", false),
+        TOTAL("total", false),
+        LOAD_FHIR_TYPES("loadFhirTypes", true),
+        SERIALIZE("serialize", true);
+
+        private final String label;
+        private final boolean worker;
+
+        Phase(String label, boolean worker) {
+            this.label = label;
+            this.worker = worker;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public boolean isWorker() {
+            return worker;
+        }
+    }
+
+    private final Map<Phase, LongAdder> phaseNanos;
+    private final LongAdder typesResolved;
+    private final LongAdder memoHits;
+    private final LongAdder builtInTypeLookups;
+    private final LongAdder definitionsGenerated;
+    private final LongAdder definitionsWritten;
+    private final LongAdder filesUnchanged;
+    private final LongAdder elements;
+    private final LongAccumulator maxElements;
+    private final LongAdder definitionsSpilled;
+    private final LongAdder spilledBytes;
+    private final LongAdder valueSetsCreated;
+    private final LongAdder valueSetsShared;
+
+    public ConversionMetrics() {
+        // All phases are present up front, so the map itself is never modified after construction
+        this.phaseNanos = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+        this.typesResolved = new LongAdder();
+        this.memoHits = new LongAdder();
+        this.builtInTypeLookups = new LongAdder();
+        this.definitionsGenerated = new LongAdder();
+        this.definitionsWritten = new LongAdder();
+        this.filesUnchanged = new LongAdder();
+        this.elements = new LongAdder();
+        this.maxElements = new LongAccumulator(new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(long left, long right) {
+                return Math.max(left, right);
+            }
+        }, 0);
+        this.definitionsSpilled = new LongAdder();
+        this.spilledBytes = new LongAdder();
+        this.valueSetsCreated = new LongAdder();
+        this.valueSetsShared = new LongAdder();
+    }
+
+    public void addTime(Phase phase, long nanos) {
+        phaseNanos.get(phase).add(nanos);
+    }
+
+    public long getTimeNanos(Phase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    // A schema type was looked up and its definition had to be built (a memo miss)
+    public void typeResolved() {
+        typesResolved.increment();
+    }
+
+    // A schema type was looked up and its definition was already memoized
+    public void memoHit() {
+        memoHits.increment();
+    }
+
+    public void builtInTypeLookup() {
+        builtInTypeLookups.increment();
+    }
+
+    public void definitionGenerated(int elementCount) {
+        definitionsGenerated.increment();
+        elements.add(elementCount);
+        maxElements.accumulate(elementCount);
+    }
+
+    public void definitionWritten() {
+        definitionsWritten.increment();
+    }
+
+    // An output file already held what would have been written, so it was left alone
+    public void fileUnchanged() {
+        filesUnchanged.increment();
+    }
+
+    // A completed definition went to disk instead of staying in memory
+    public void definitionSpilled(long bytes) {
+        definitionsSpilled.increment();
+        spilledBytes.add(bytes);
+    }
+
+    // An enumeration was turned into a new ValueSet
+    public void valueSetCreated() {
+        valueSetsCreated.increment();
+    }
+
+    // An enumeration resolved to a ValueSet built for an identical code list
+    public void valueSetShared() {
+        valueSetsShared.increment();
+    }
+
+    public long getTypesResolved() {
+        return typesResolved.sum();
+    }
+
+    public long getMemoHits() {
+        return memoHits.sum();
+    }
+
+    public long getMemoMisses() {
+        return typesResolved.sum();
+    }
+
+    public long getBuiltInTypeLookups() {
+        return builtInTypeLookups.sum();
+    }
+
+    public long getDefinitionsGenerated() {
+        return definitionsGenerated.sum();
+    }
+
+    public long getDefinitionsWritten() {
+        return definitionsWritten.sum();
+    }
+
+    public long getFilesUnchanged() {
+        return filesUnchanged.sum();
+    }
+
+    public long getElements() {
+        return elements.sum();
+    }
+
+    public long getMaxElements() {
+        return maxElements.get();
+    }
+
+    public long getDefinitionsSpilled() {
+        return definitionsSpilled.sum();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    public long getValueSetsCreated() {
+        return valueSetsCreated.sum();
+    }
+
+    public long getValueSetsShared() {
+        return valueSetsShared.sum();
+    }
+
+    public String toJson() {
+        long hits = getMemoHits();
+        long misses = getMemoMisses();
+        long generated = getDefinitionsGenerated();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        appendPhases(sb, "wallTimeMs", false);
+        appendPhases(sb, "workerTimeMs", true);
+        sb.append(String.format("  \"typesResolved\": %d,\n", getTypesResolved()));
+        sb.append(String.format("  \"memo\": {\"hits\": %d, \"misses\": %d, \"hitRate\": %s},\n",
+                hits, misses, formatDouble(hits + misses > 0 ? (double)hits / (hits + misses) : 0)));
+        sb.append(String.format("  \"builtInTypeLookups\": %d,\n", getBuiltInTypeLookups()));
+        sb.append(String.format("  \"definitionsGenerated\": %d,\n", generated));
+        sb.append(String.format("  \"definitionsWritten\": %d,\n", getDefinitionsWritten()));
+        sb.append(String.format("  \"filesUnchanged\": %d,\n", getFilesUnchanged()));
+        sb.append(String.format("  \"elementsPerDefinition\": {\"total\": %d, \"max\": %d, \"mean\": %s},\n",
+                getElements(), getMaxElements(), formatDouble(generated > 0 ? (double)getElements() / generated : 0)));
+        sb.append(String.format("  \"spilled\": {\"definitions\": %d, \"bytes\": %d},\n", getDefinitionsSpilled(), getSpilledBytes()));
+        sb.append(String.format("  \"valueSets\": {\"created\": %d, \"shared\": %d}\n", getValueSetsCreated(), getValueSetsShared()));
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void appendPhases(StringBuilder sb, String name, boolean worker) {
+        sb.append(String.format("  \"%s\": {", name));
+        String separator = "";
+        for (Phase phase : Phase.values()) {
+            if (phase.isWorker() == worker) {
+                sb.append(String.format("%s\"%s\": %s", separator, phase.getLabel(), formatDouble(getTimeNanos(phase) / 1e6)));
+                separator = ", ";
+            }
+        }
+        sb.append("},\n");
+    }
+
+    private static String formatDouble(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Writes the JSON summary to the given file, or to standard out if the path is "-".
+     */
+    public void write(String path) throws IOException {
+        if ("-".equals(path)) {
+            System.out.print(toJson());
+            return;
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.apache.ws.commons.schema.XmlSchemaCollection;
+import org.apache.ws.commons.schema.XmlSchemaException;
+import org.apache.ws.commons.schema.resolver.DefaultURIResolver;
+import org.apache.ws.commons.schema.resolver.URIResolver;
+import org.xml.sax.InputSource;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Local HTTP service converting the schemas posted to it, so a build sending many small conversions pays for JVM
+ * startup, the FHIR context and the base types once instead of once per schema.
+ *
+ * POST /convert with a schema as the request body answers with all of its definitions as a collection Bundle or as
+ * NDJSON. Query parameters: modelName, format (xml or json), compact (true or false), output (bundle or ndjson) and
+ * systemId (the path of the schema within the schema root, its includes and imports are resolved against it). GET
+ * /metrics answers with the timings and counters of every conversion so far. Each request gets its own schema
+ * collection and import session, the import engine (FHIR context, base types and options) is shared. Requests run on
+ * virtual threads when the JVM has them.
+ *
+ * Clients don't get to read arbitrary files or URLs through the schemas they post: includes and imports only resolve
+ * to files under the schema root given when the server starts (none without one), and to remote schemas only when
+ * those were explicitly allowed. Neither the posted schema nor the ones it includes or imports may have a DOCTYPE, so
+ * entities can't read anything either.
+ */
+class ConversionServer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FhirContextProvider contextProvider;
+    // Null if no local schemas may be read
+    private final Path schemaRoot;
+    private final boolean remoteImports;
+    private final XsdImportEngine engine;
+    private final ConversionMetrics metrics;
+    private final ExecutorService executor;
+    private final HttpServer server;
+
+    ConversionServer(InetSocketAddress address, FhirContextProvider contextProvider, FhirTypeRegistry fhirTypes, XsdImportOptions options, int threads,
+                     File schemaRoot, boolean remoteImports) throws IOException {
+        this.contextProvider = contextProvider;
+        this.schemaRoot = schemaRoot != null ? schemaRoot.toPath().toRealPath() : null;
+        this.remoteImports = remoteImports;
+        // Set up once and shared by all requests, each request is a session of its own
+        this.engine = new XsdImportEngine(fhirTypes, contextProvider, options);
+        this.metrics = options.getMetrics() != null ? options.getMetrics() : new ConversionMetrics();
+        this.executor = createExecutor(threads);
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/convert", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleConvert(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    sendText(exchange, 200, "application/json", metrics.toJson());
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    // A virtual thread per request on Java 21 and later, a fixed pool of threads otherwise
+    private static ExecutorService createExecutor(int threads) {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+        engine.close();
+    }
+
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendText(exchange, 405, "text/plain", "Post the schema to convert as the request body.");
+            return;
+        }
+
+        DefinitionStream stream;
+        String contentType;
+        List<IResource> definitions;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            DefinitionStreamWriter.Layout layout = getLayout(params);
+            DefinitionEncoder encoder = getEncoder(layout, params);
+            stream = new DefinitionStream(layout, encoder);
+            contentType = getContentType(layout, encoder);
+            definitions = convert(exchange.getRequestBody(), params.get("systemId"), params.get("modelName"));
+        }
+        catch (IllegalArgumentException | XmlSchemaException e) {
+            sendText(exchange, 400, "text/plain", e.getMessage());
+            return;
+        }
+        catch (RuntimeException e) {
+            sendText(exchange, 500, "text/plain", e.toString());
+            return;
+        }
+
+        // The conversion succeeded, the definitions are streamed from here on
+        long start = System.nanoTime();
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            stream.writeHeader(writer);
+            for (IResource resource : definitions) {
+                stream.writeEntry(writer, resource);
+                metrics.definitionWritten();
+            }
+            stream.writeFooter(writer);
+        }
+        finally {
+            metrics.addTime(ConversionMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+        }
+    }
+
+    private List<IResource> convert(InputStream body, String systemId, String modelName) throws IOException {
+        long start = System.nanoTime();
+        try {
+            XmlSchemaCollection schemaCol = new XmlSchemaCollection();
+            schemaCol.setSchemaResolver(new SchemaResolver(schemaRoot, remoteImports));
+            XmlSchema schema;
+            try (InputStream is = body) {
+                InputSource source = new InputSource(is);
+                source.setSystemId(systemId != null ? getSchemaUri(systemId) : null);
+                schema = schemaCol.read(SchemaParser.parse(source, false), source.getSystemId());
+            }
+
+            // Handed out in the order they complete, as the command line tool writes them
+            final List<IResource> definitions = new ArrayList<>();
+            engine.importSchema(schema, modelName, new Consumer<IResource>() {
+                @Override
+                public void accept(IResource resource) {
+                    synchronized (definitions) {
+                        definitions.add(resource);
+                    }
+                }
+            });
+            return definitions;
+        }
+        finally {
+            metrics.addTime(ConversionMetrics.Phase.GENERATE, System.nanoTime() - start);
+        }
+    }
+
+    // The file URI of a path within the schema root
+    private String getSchemaUri(String systemId) {
+        if (schemaRoot == null) {
+            throw new IllegalArgumentException("systemId needs a schema root, the server was started without one.");
+        }
+        Path path = schemaRoot.resolve(systemId).normalize();
+        if (!path.startsWith(schemaRoot)) {
+            throw new IllegalArgumentException(String.format("systemId %s is not within the schema root.", systemId));
+        }
+        return path.toUri().toString();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int separatorIndex = param.indexOf('=');
+                String name = separatorIndex >= 0 ? param.substring(0, separatorIndex) : param;
+                String value = separatorIndex >= 0 ? param.substring(separatorIndex + 1) : "";
+                params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static DefinitionStreamWriter.Layout getLayout(Map<String, String> params) {
+        String output = params.get("output");
+        if (output == null || output.equals("bundle")) {
+            return DefinitionStreamWriter.Layout.BUNDLE;
+        }
+        if (output.equals("ndjson")) {
+            return DefinitionStreamWriter.Layout.NDJSON;
+        }
+        throw new IllegalArgumentException(String.format("Unknown output %s, expected bundle or ndjson.", output));
+    }
+
+    private DefinitionEncoder getEncoder(DefinitionStreamWriter.Layout layout, Map<String, String> params) {
+        if (layout == DefinitionStreamWriter.Layout.NDJSON) {
+            if (params.containsKey("format") && OutputFormat.fromName(params.get("format")) != OutputFormat.JSON) {
+                throw new IllegalArgumentException("NDJSON output can only be written as json.");
+            }
+            return new DefinitionEncoder(contextProvider, OutputFormat.JSON, true);
+        }
+
+        OutputFormat format = params.containsKey("format") ? OutputFormat.fromName(params.get("format")) : OutputFormat.XML;
+        return new DefinitionEncoder(contextProvider, format, "true".equals(params.get("compact")));
+    }
+
+    private static String getContentType(DefinitionStreamWriter.Layout layout, DefinitionEncoder encoder) {
+        if (layout == DefinitionStreamWriter.Layout.NDJSON) {
+            return "application/x-ndjson; charset=UTF-8";
+        }
+        return encoder.getFormat() == OutputFormat.JSON ? "application/json+fhir; charset=UTF-8" : "application/xml+fhir; charset=UTF-8";
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        byte[] body = (text != null ? text : "").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Resolves includes and imports like the default resolver, then refuses anything outside what the server may read
+    private static final class SchemaResolver implements URIResolver {
+        private final Path schemaRoot;
+        private final boolean remoteImports;
+        private final DefaultURIResolver resolver;
+
+        private SchemaResolver(Path schemaRoot, boolean remoteImports) {
+            this.schemaRoot = schemaRoot;
+            this.remoteImports = remoteImports;
+            this.resolver = new DefaultURIResolver();
+        }
+
+        @Override
+        public InputSource resolveEntity(String targetNamespace, String schemaLocation, String baseUri) {
+            InputSource source = resolver.resolveEntity(targetNamespace, schemaLocation, baseUri);
+            if (source == null || source.getSystemId() == null) {
+                return source;
+            }
+
+            URI uri;
+            try {
+                uri = new URI(source.getSystemId());
+            }
+            catch (URISyntaxException e) {
+                throw new IllegalArgumentException(String.format("Invalid schema location %s.", schemaLocation), e);
+            }
+            if (!isAllowed(uri)) {
+                throw new IllegalArgumentException(String.format("Schema location %s is not allowed, only schemas under the schema root%s are read.",
+                        schemaLocation, remoteImports ? " and remote schemas" : ""));
+            }
+            return read(uri);
+        }
+
+        // The collection parses what it resolves itself, so the content is checked for a DOCTYPE first
+        private static InputSource read(URI uri) {
+            byte[] content;
+            try (InputStream is = uri.toURL().openStream()) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = is.read(buffer)) >= 0) {
+                    os.write(buffer, 0, count);
+                }
+                content = os.toByteArray();
+
+                InputSource source = new InputSource(new ByteArrayInputStream(content));
+                source.setSystemId(uri.toString());
+                SchemaParser.parse(source, false);
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException(String.format("Can't read schema %s: %s", uri, e.getMessage()), e);
+            }
+
+            InputSource source = new InputSource(new ByteArrayInputStream(content));
+            source.setSystemId(uri.toString());
+            return source;
+        }
+
+        private boolean isAllowed(URI uri) {
+            String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : null;
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                return remoteImports;
+            }
+            if (!"file".equals(scheme) || schemaRoot == null) {
+                return false;
+            }
+            try {
+                // Real paths, so links don't lead out of the root
+                return Paths.get(uri).toRealPath().startsWith(schemaRoot);
+            }
+            catch (IOException | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+}
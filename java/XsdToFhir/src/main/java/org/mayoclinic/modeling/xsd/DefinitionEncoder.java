@@ -0,0 +1,58 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.parser.IParser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Encodes StructureDefinitions and ValueSets in one of the output formats, pretty printed or compact.
+ *
+ * The parsers stream the resource straight into the given writer (an XML or JSON stream generator underneath),
+ * so with a writer over the output channel nothing is built up in memory. Safe to use from several threads.
+ */
+public class DefinitionEncoder {
+    private final FhirContextProvider contextProvider;
+    private final OutputFormat format;
+    private final boolean compact;
+
+    public DefinitionEncoder(FhirContextProvider contextProvider, OutputFormat format, boolean compact) {
+        if (contextProvider == null) {
+            throw new IllegalArgumentException("contextProvider is null");
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("format is null");
+        }
+
+        this.contextProvider = contextProvider;
+        this.format = format;
+        this.compact = compact;
+    }
+
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    // Extension of files written in this format, without the dot
+    public String getFileExtension() {
+        return format.name().toLowerCase(Locale.ROOT);
+    }
+
+    public void encode(IResource resource, Writer writer) throws IOException {
+        getParser().encodeResourceToWriter(resource, writer);
+    }
+
+    private IParser getParser() {
+        if (format == OutputFormat.JSON) {
+            return compact ? contextProvider.getJsonParser() : contextProvider.getPrettyJsonParser();
+        }
+
+        return compact ? contextProvider.getXmlParser() : contextProvider.getPrettyXmlParser();
+    }
+}
@@ -0,0 +1,34 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Destination for the StructureDefinitions (and ValueSets) produced by a conversion run.
+ */
+public interface DefinitionOutput extends Closeable {
+    /**
+     * Queues the definition to be written. Safe to call from several threads; destDir is the directory of the schema
+     * being converted, outputs that write everything to one file ignore it.
+     */
+    void write(File destDir, IResource resource);
+
+    /**
+     * Waits for all queued definitions to be written and returns the failures, if any.
+     */
+    List<DefinitionWriter.Failure> awaitCompletion() throws InterruptedException;
+
+    int getWrittenCount();
+
+    // Files written so far, in the order they were completed
+    List<File> getWrittenFiles();
+
+    // Files left as they were because they already held the output (only when skipping unchanged files)
+    List<File> getUnchangedFiles();
+
+    @Override
+    void close();
+}
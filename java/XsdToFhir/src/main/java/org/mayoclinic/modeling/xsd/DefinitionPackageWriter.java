@@ -0,0 +1,432 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import ca.uhn.fhir.model.dstu2.resource.ValueSet;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams all StructureDefinitions and ValueSets of a run into a FHIR package: a tar archive (gzipped for a .tgz)
+ * holding package/package.json, one package/&lt;resourceType&gt;-&lt;id&gt;.json file per resource and the
+ * package/.index.json listing them, ready to be published or installed without another packaging step.
+ *
+ * Every entry is written once, straight into one buffered channel: a resource is encoded in memory (a tar header
+ * carries the size of its entry) and then appended. As with {@link DefinitionStreamWriter} the archive is written under
+ * a temporary name and moved over the destination once it is complete, sorted output writes the entries ordered by
+ * file name at the end, and a completed archive identical to the destination can be discarded. A resource written
+ * again under the same file name (e.g. a ValueSet shared by several schemas of a batch) is only stored once.
+ */
+public class DefinitionPackageWriter implements DefinitionOutput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_SIZE = 64;
+    private static final int BLOCK_SIZE = 512;
+    // Archives are padded to whole records of 20 blocks, as tar itself writes them
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+    private static final String PACKAGE_DIRECTORY = "package/";
+
+    // A resource in the package, as listed in the index
+    private static final class IndexEntry {
+        private final String fileName;
+        private final String resourceType;
+        private final String id;
+        private final String url;
+
+        private IndexEntry(String fileName, String resourceType, String id, String url) {
+            this.fileName = fileName;
+            this.resourceType = resourceType;
+            this.id = id;
+            this.url = url;
+        }
+    }
+
+    private final File destFile;
+    private final DefinitionEncoder encoder;
+    private final ConversionMetrics metrics;
+    private final long modificationTime;
+    private final ExecutorService executor;
+    private final Queue<Future<?>> pending;
+    private final Queue<DefinitionWriter.Failure> failures;
+    private final AtomicInteger written;
+    private final Path temp;
+    private final FileChannel channel;
+    private final GZIPOutputStream gzip;
+    private final OutputStream out;
+    private final boolean skipUnchanged;
+    // Guarded by out
+    private final List<IndexEntry> index;
+    private final Map<String, byte[]> hashesByFileName;
+    private final SortedMap<String, List<byte[]>> sortedEntries;
+    private final Map<String, IndexEntry> sortedIndexEntries;
+    private long position;
+    private boolean finished;
+    private boolean unchanged;
+
+    /**
+     * The package is named and versioned as given, date is both the package's date and the modification time of its
+     * entries. Resources are always encoded as JSON, pretty printed unless the encoder is compact.
+     */
+    public DefinitionPackageWriter(File destFile, DefinitionEncoder encoder, boolean gzip, ConversionMetrics metrics, String packageName,
+                                   String packageVersion, String publisher, Date date, boolean sorted, boolean skipUnchanged) throws IOException {
+        if (encoder.getFormat() != OutputFormat.JSON) {
+            throw new IllegalArgumentException("Packages can only be written as json.");
+        }
+        if (packageName == null || packageName.isEmpty() || !packageName.equals(packageName.toLowerCase(Locale.ROOT))) {
+            throw new IllegalArgumentException(String.format("Invalid package name %s, expected a lower case name.", packageName));
+        }
+
+        this.destFile = destFile;
+        this.encoder = encoder;
+        this.metrics = metrics;
+        this.modificationTime = TimeUnit.MILLISECONDS.toSeconds(date.getTime());
+        // One writer thread appends the entries, when it falls behind the submitting thread writes
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.failures = new ConcurrentLinkedQueue<>();
+        this.written = new AtomicInteger();
+        this.skipUnchanged = skipUnchanged;
+        this.index = new ArrayList<>();
+        this.hashesByFileName = new HashMap<>();
+        this.sortedEntries = sorted ? new TreeMap<String, List<byte[]>>() : null;
+        this.sortedIndexEntries = sorted ? new HashMap<String, IndexEntry>() : null;
+
+        Path target = destFile.getAbsoluteFile().toPath();
+        Files.createDirectories(target.getParent());
+        this.temp = target.resolveSibling(String.format(".%s.tmp", destFile.getName()));
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        OutputStream channelOut = Channels.newOutputStream(channel);
+        this.gzip = gzip ? new GZIPOutputStream(channelOut, BUFFER_SIZE) : null;
+        this.out = new BufferedOutputStream(gzip ? this.gzip : channelOut, BUFFER_SIZE);
+
+        synchronized (out) {
+            writeEntry("package.json", createManifest(packageName, packageVersion, publisher, date).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public void write(File destDir, final IResource resource) {
+        pending.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    String resourceType = resource.getResourceName();
+                    String id = resource.getId().getIdPart();
+                    String fileName = String.format("%s-%s.json", resourceType, id);
+                    IndexEntry indexEntry = new IndexEntry(fileName, resourceType, id, getUrl(resource));
+                    byte[] content = encode(resource);
+                    synchronized (out) {
+                        if (finished) {
+                            throw new IllegalStateException("The output has already been completed.");
+                        }
+                        if (sortedEntries != null) {
+                            addSortedEntry(indexEntry, content);
+                        }
+                        else {
+                            writeResource(indexEntry, content);
+                        }
+                    }
+                    written.incrementAndGet();
+                    metrics.definitionWritten();
+                }
+                catch (Exception e) {
+                    failures.add(new DefinitionWriter.Failure(destFile, e));
+                }
+                finally {
+                    metrics.addTime(ConversionMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+                }
+            }
+        }));
+    }
+
+    private byte[] encode(IResource resource) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            encoder.encode(resource, writer);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void addSortedEntry(IndexEntry indexEntry, byte[] content) {
+        List<byte[]> entries = sortedEntries.get(indexEntry.fileName);
+        if (entries == null) {
+            entries = new ArrayList<>(1);
+            sortedEntries.put(indexEntry.fileName, entries);
+            sortedIndexEntries.put(indexEntry.fileName, indexEntry);
+        }
+        entries.add(content);
+    }
+
+    // Stores the resource unless the same content was already stored under its file name
+    private void writeResource(IndexEntry indexEntry, byte[] content) throws IOException {
+        byte[] hash = ContentHash.of(content);
+        byte[] previousHash = hashesByFileName.get(indexEntry.fileName);
+        if (previousHash != null) {
+            if (!Arrays.equals(previousHash, hash)) {
+                // Both would have the same id and url, which a package can't hold
+                throw new IllegalStateException(String.format("The package already holds a different %s %s.", indexEntry.resourceType, indexEntry.id));
+            }
+            return;
+        }
+
+        hashesByFileName.put(indexEntry.fileName, hash);
+        writeEntry(indexEntry.fileName, content);
+        index.add(indexEntry);
+    }
+
+    /**
+     * Waits for all queued definitions, completes the archive and moves it into place. If any definition could not be
+     * written the destination is left untouched.
+     */
+    @Override
+    public List<DefinitionWriter.Failure> awaitCompletion() throws InterruptedException {
+        Future<?> future;
+        while ((future = pending.poll()) != null) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                failures.add(new DefinitionWriter.Failure(destFile, e));
+            }
+        }
+
+        synchronized (out) {
+            if (!finished) {
+                finished = true;
+                try {
+                    finish();
+                }
+                catch (IOException | RuntimeException e) {
+                    failures.add(new DefinitionWriter.Failure(destFile, e));
+                }
+            }
+        }
+        return new ArrayList<>(failures);
+    }
+
+    private void finish() throws IOException {
+        try {
+            if (sortedEntries != null && failures.isEmpty()) {
+                for (Map.Entry<String, List<byte[]>> entry : sortedEntries.entrySet()) {
+                    for (byte[] content : entry.getValue()) {
+                        writeResource(sortedIndexEntries.get(entry.getKey()), content);
+                    }
+                }
+                sortedEntries.clear();
+            }
+
+            if (failures.isEmpty()) {
+                writeEntry(".index.json", createIndex().getBytes(StandardCharsets.UTF_8));
+                // End of archive: two empty blocks, then up to the end of the record
+                long end = position + 2 * BLOCK_SIZE;
+                out.write(new byte[(int)(end - position + (RECORD_SIZE - end % RECORD_SIZE) % RECORD_SIZE)]);
+                out.flush();
+                if (gzip != null) {
+                    gzip.finish();
+                }
+                channel.force(false);
+            }
+            out.close();
+
+            if (failures.isEmpty()) {
+                Path target = destFile.getAbsoluteFile().toPath();
+                unchanged = skipUnchanged && ContentHash.matches(target, ContentHash.of(temp), Files.size(temp));
+                if (unchanged) {
+                    metrics.fileUnchanged();
+                }
+                else {
+                    moveIntoPlace(temp, target);
+                }
+            }
+        }
+        finally {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // A regular file in the package directory: a ustar header, the content, and padding to the next block
+    private void writeEntry(String fileName, byte[] content) throws IOException {
+        out.write(createHeader(PACKAGE_DIRECTORY + fileName, content.length));
+        out.write(content);
+        int padding = (BLOCK_SIZE - content.length % BLOCK_SIZE) % BLOCK_SIZE;
+        out.write(new byte[padding]);
+        position += BLOCK_SIZE + content.length + padding;
+    }
+
+    private byte[] createHeader(String path, long size) {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length <= 100) {
+            System.arraycopy(pathBytes, 0, header, 0, pathBytes.length);
+        }
+        else {
+            // Longer paths are split at a slash, the directory goes into the prefix field
+            int separatorIndex = PACKAGE_DIRECTORY.length() - 1;
+            if (pathBytes.length - separatorIndex - 1 > 100) {
+                throw new IllegalArgumentException(String.format("File name of %s is too long for a package entry.", path));
+            }
+            System.arraycopy(pathBytes, separatorIndex + 1, header, 0, pathBytes.length - separatorIndex - 1);
+            System.arraycopy(pathBytes, 0, header, 345, separatorIndex);
+        }
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, modificationTime);
+        header[156] = '0';
+        putText(header, 257, "ustar");
+        putText(header, 263, "00");
+
+        // The checksum is summed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte)' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putText(header, 148, String.format("%06o", checksum));
+        header[154] = 0;
+        header[155] = ' ';
+        return header;
+    }
+
+    // Zero padded octal digits followed by a NUL, filling the field
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        if (digits.length() > length - 1) {
+            throw new IllegalArgumentException(String.format("%d does not fit in a tar header field.", value));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = digits.length(); i < length - 1; i++) {
+            sb.append('0');
+        }
+        putText(header, offset, sb.append(digits).toString());
+    }
+
+    private static void putText(byte[] header, int offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    private static String createManifest(String packageName, String packageVersion, String publisher, Date date) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ROOT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(String.format("  \"name\": %s,\n", quote(packageName)));
+        sb.append(String.format("  \"version\": %s,\n", quote(packageVersion)));
+        sb.append(String.format("  \"description\": %s,\n", quote("StructureDefinitions and ValueSets generated from XML schemas.")));
+        sb.append(String.format("  \"author\": %s,\n", quote(publisher)));
+        sb.append(String.format("  \"date\": %s,\n", quote(dateFormat.format(date))));
+        sb.append(String.format("  \"fhirVersions\": [%s],\n", quote(XsdImportEngine.FHIR_VERSION)));
+        sb.append("  \"dependencies\": {}\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private String createIndex() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"index-version\": 1,\n");
+        sb.append("  \"files\": [");
+        String separator = "\n";
+        for (IndexEntry entry : index) {
+            sb.append(separator);
+            sb.append(String.format("    {\"filename\": %s, \"resourceType\": %s, \"id\": %s", quote(entry.fileName), quote(entry.resourceType), quote(entry.id)));
+            if (entry.url != null) {
+                sb.append(String.format(", \"url\": %s", quote(entry.url)));
+            }
+            sb.append('}');
+            separator = ",\n";
+        }
+        sb.append(separator.equals("\n") ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String getUrl(IResource resource) {
+        if (resource instanceof StructureDefinition) {
+            return ((StructureDefinition)resource).getUrl();
+        }
+        if (resource instanceof ValueSet) {
+            return ((ValueSet)resource).getUrl();
+        }
+        return null;
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public int getWrittenCount() {
+        return written.get();
+    }
+
+    @Override
+    public List<File> getWrittenFiles() {
+        synchronized (out) {
+            return finished && failures.isEmpty() && !unchanged ? Collections.singletonList(destFile) : Collections.<File>emptyList();
+        }
+    }
+
+    @Override
+    public List<File> getUnchangedFiles() {
+        synchronized (out) {
+            return finished && unchanged ? Collections.singletonList(destFile) : Collections.<File>emptyList();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        synchronized (out) {
+            if (!finished) {
+                // Closed without completing (e.g. the import failed), the partial archive is discarded
+                finished = true;
+                try {
+                    channel.close();
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException e) {
+                    // Nothing was published, a leftover temporary file is overwritten by the next run
+                }
+            }
+        }
+    }
+}
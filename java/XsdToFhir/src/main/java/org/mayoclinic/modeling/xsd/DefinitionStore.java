@@ -0,0 +1,225 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The definitions an import returns, by qualified type name.
+ *
+ * Definitions generated from the schema are kept in memory until their estimated size exceeds the memory budget,
+ * after that each completed definition is written to a spill file as compact JSON and only read back (one at a time)
+ * when the definitions are iterated. A type that resolves to another type's definition refers to it by url, so it
+ * sees the definition wherever it ends up. FHIR base types always stay in memory, they belong to the registry. The
+ * size of a definition is estimated from its element count. Safe to use from several threads.
+ *
+ * Closing the store deletes the spill file, spilled definitions can't be read after that.
+ */
+class DefinitionStore implements Closeable {
+    private static final long DEFINITION_BYTES = 2 * 1024;
+    private static final long ELEMENT_BYTES = 1024;
+
+    // A type's definition, either held directly or the url of a definition generated from the schema
+    private static final class Entry {
+        private final StructureDefinition definition;
+        private final String url;
+
+        private Entry(StructureDefinition definition, String url) {
+            this.definition = definition;
+            this.url = url;
+        }
+    }
+
+    // A definition generated from the schema, in memory or at the given position of the spill file
+    private static final class Record {
+        private final StructureDefinition definition;
+        private final long position;
+        private final int length;
+
+        private Record(StructureDefinition definition, long position, int length) {
+            this.definition = definition;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    private final FhirContextProvider contextProvider;
+    private final long memoryBudget;
+    private final File spillDirectory;
+    private final ConversionMetrics metrics;
+    private final ConcurrentMap<String, Entry> entries;
+    private final ConcurrentMap<String, Record> records;
+    private final AtomicLong estimatedBytes;
+    // Guarded by this
+    private File spillFile;
+    private FileChannel spillChannel;
+    private boolean closed;
+
+    DefinitionStore(FhirContextProvider contextProvider, long memoryBudget, File spillDirectory, ConversionMetrics metrics) {
+        this.contextProvider = contextProvider;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+        this.metrics = metrics;
+        // Sorted, so definitions are iterated in the same order whatever order they were generated in
+        this.entries = new ConcurrentSkipListMap<>();
+        this.records = new ConcurrentHashMap<>();
+        this.estimatedBytes = new AtomicLong();
+    }
+
+    /**
+     * Adds a completed definition generated from the schema and returns whether it stayed in memory.
+     */
+    public boolean addGenerated(String qualifiedTypeName, StructureDefinition definition) {
+        Record record;
+        long size = estimateSize(definition);
+        if (memoryBudget > 0 && estimatedBytes.addAndGet(size) > memoryBudget) {
+            estimatedBytes.addAndGet(-size);
+            record = spill(definition);
+        }
+        else {
+            record = new Record(definition, -1, 0);
+        }
+
+        records.put(definition.getUrl(), record);
+        entries.put(qualifiedTypeName, new Entry(null, definition.getUrl()));
+        return record.definition != null;
+    }
+
+    // The type resolves to a definition generated from the schema for another type, which may not be complete yet
+    public void addReference(String qualifiedTypeName, String url) {
+        entries.put(qualifiedTypeName, new Entry(null, url));
+    }
+
+    // The type resolves to a definition that isn't generated from the schema
+    public void addExternal(String qualifiedTypeName, StructureDefinition definition) {
+        entries.put(qualifiedTypeName, new Entry(definition, null));
+    }
+
+    // Called once every definition is added, the spill file is only read from then on
+    public synchronized void finish() {
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(String.format("Could not close spill file %s.", spillFile.getPath()), e);
+            }
+            spillChannel = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        try {
+            if (spillChannel != null) {
+                spillChannel.close();
+                spillChannel = null;
+            }
+        }
+        catch (IOException e) {
+            // The file is deleted all the same
+        }
+        if (spillFile != null && !spillFile.delete() && spillFile.exists()) {
+            throw new IllegalStateException(String.format("Could not delete spill file %s.", spillFile.getPath()));
+        }
+    }
+
+    // Spilled definitions are read back as the iteration reaches them
+    public Iterable<StructureDefinition> values() {
+        return new Iterable<StructureDefinition>() {
+            @Override
+            public Iterator<StructureDefinition> iterator() {
+                final Iterator<Entry> iterator = entries.values().iterator();
+                return new Iterator<StructureDefinition>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public StructureDefinition next() {
+                        return get(iterator.next());
+                    }
+                };
+            }
+        };
+    }
+
+    private StructureDefinition get(Entry entry) {
+        if (entry.definition != null) {
+            return entry.definition;
+        }
+
+        Record record = records.get(entry.url);
+        if (record == null) {
+            throw new IllegalStateException(String.format("No definition was added for %s.", entry.url));
+        }
+        return record.definition != null ? record.definition : read(record);
+    }
+
+    private static long estimateSize(StructureDefinition definition) {
+        int elementCount = definition.getSnapshot() != null ? definition.getSnapshot().getElement().size() : 0;
+        return DEFINITION_BYTES + elementCount * ELEMENT_BYTES;
+    }
+
+    private Record spill(StructureDefinition definition) {
+        // Encoded before taking the lock, only the append is serialized
+        byte[] bytes = contextProvider.getJsonParser().encodeResourceToString(definition).getBytes(StandardCharsets.UTF_8);
+        long position;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The definitions have already been closed.");
+            }
+            try {
+                if (spillChannel == null) {
+                    openSpillFile();
+                }
+                position = spillChannel.position();
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    spillChannel.write(buffer);
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(String.format("Could not spill definition %s.", definition.getUrl()), e);
+            }
+        }
+
+        metrics.definitionSpilled(bytes.length);
+        return new Record(null, position, bytes.length);
+    }
+
+    private void openSpillFile() throws IOException {
+        spillFile = File.createTempFile("definitions", ".spill", spillDirectory);
+        spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.WRITE);
+    }
+
+    private StructureDefinition read(Record record) {
+        byte[] bytes = new byte[record.length];
+        try (RandomAccessFile file = new RandomAccessFile(getSpillFile(), "r")) {
+            file.seek(record.position);
+            file.readFully(bytes);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not read spilled definition from %s.", getSpillFile().getPath()), e);
+        }
+        return contextProvider.getJsonParser().parseResource(StructureDefinition.class, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private synchronized File getSpillFile() {
+        if (closed) {
+            throw new IllegalStateException("The definitions have already been closed.");
+        }
+        return spillFile;
+    }
+}
@@ -0,0 +1,91 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Lays out StructureDefinitions and ValueSets as the entries of a collection Bundle (XML or JSON) or as newline-delimited JSON,
+ * writing the header, each entry and the footer to a writer as they come. Not safe to use from several threads.
+ */
+class DefinitionStream {
+    private final DefinitionEncoder encoder;
+    private final String header;
+    private final String firstEntryStart;
+    private final String entryStart;
+    private final String entryEnd;
+    private final String footer;
+    private final String emptyFooter;
+    private boolean firstEntry;
+
+    DefinitionStream(DefinitionStreamWriter.Layout layout, DefinitionEncoder encoder) {
+        if (layout == DefinitionStreamWriter.Layout.NDJSON && (encoder.getFormat() != OutputFormat.JSON || !encoder.isCompact())) {
+            throw new IllegalArgumentException("NDJSON output can only be written as compact json.");
+        }
+
+        this.encoder = encoder;
+
+        // Text around the encoded definitions, the same for every entry so it is only built once
+        if (layout == DefinitionStreamWriter.Layout.NDJSON) {
+            this.header = "";
+            this.firstEntryStart = "";
+            this.entryStart = "";
+            this.entryEnd = "\n";
+            this.footer = "";
+            this.emptyFooter = "";
+        }
+        else if (encoder.getFormat() == OutputFormat.XML) {
+            this.header = layout("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Bundle xmlns=\"http://hl7.org/fhir\">\n  <type value=\"collection\"/>\n");
+            this.firstEntryStart = layout("  <entry>\n    <resource>\n");
+            this.entryStart = firstEntryStart;
+            this.entryEnd = layout("\n    </resource>\n  </entry>\n");
+            this.footer = layout("</Bundle>\n");
+            this.emptyFooter = footer;
+        }
+        else {
+            this.header = layout("{\n  \"resourceType\": \"Bundle\",\n  \"type\": \"collection\",\n  \"entry\": [");
+            this.firstEntryStart = layout("\n    {\n      \"resource\": ");
+            this.entryStart = layout(",\n    {\n      \"resource\": ");
+            this.entryEnd = layout("\n    }");
+            this.footer = layout("\n  ]\n}\n");
+            this.emptyFooter = layout("]\n}\n");
+        }
+        this.firstEntry = true;
+    }
+
+    // Drops the line breaks, indentation and spacing of the bundle text when writing compact output
+    private String layout(String text) {
+        return encoder.isCompact() ? text.replaceAll("\n *|^ +", "").replace("\": ", "\":") : text;
+    }
+
+    public void writeHeader(Writer writer) throws IOException {
+        writer.write(header);
+    }
+
+    public void writeEntry(Writer writer, IResource resource) throws IOException {
+        writer.write(firstEntry ? firstEntryStart : entryStart);
+        encoder.encode(resource, writer);
+        writer.write(entryEnd);
+        firstEntry = false;
+    }
+
+    // An entry for a definition encoded earlier with this stream's encoder
+    public void writeEncodedEntry(Writer writer, String encoded) throws IOException {
+        writer.write(firstEntry ? firstEntryStart : entryStart);
+        writer.write(encoded);
+        writer.write(entryEnd);
+        firstEntry = false;
+    }
+
+    public String encode(IResource resource) throws IOException {
+        StringWriter writer = new StringWriter();
+        encoder.encode(resource, writer);
+        return writer.toString();
+    }
+
+    public void writeFooter(Writer writer) throws IOException {
+        writer.write(firstEntry ? emptyFooter : footer);
+    }
+}
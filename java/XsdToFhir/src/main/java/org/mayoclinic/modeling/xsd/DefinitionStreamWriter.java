@@ -0,0 +1,254 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams all StructureDefinitions and ValueSets of a run into a single file, either as the entries of a collection
+ * Bundle (XML or JSON) or as newline-delimited JSON, optionally gzipped.
+ *
+ * Definitions are encoded straight into one buffered channel as they arrive, nothing but the current definition is
+ * held in memory. With a compact encoder the bundle's own elements are written without whitespace as well. The file
+ * is written under a temporary name and only moved over the destination once the document is complete and every
+ * definition was written.
+ *
+ * Sorted output holds the encoded entries until the end and writes them ordered by destination and resource id, so the
+ * file does not depend on the order the definitions were generated in. When skipping unchanged files, a completed file
+ * that is identical (by SHA-256) to the destination is discarded and the destination keeps its modification time.
+ */
+public class DefinitionStreamWriter implements DefinitionOutput {
+    public enum Layout {
+        BUNDLE,
+        NDJSON
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_SIZE = 64;
+
+    private final File destFile;
+    private final Path temp;
+    private final DefinitionStream stream;
+    private final ConversionMetrics metrics;
+    private final ExecutorService executor;
+    private final Queue<Future<?>> pending;
+    private final Queue<DefinitionWriter.Failure> failures;
+    private final AtomicInteger written;
+    private final FileChannel channel;
+    private final GZIPOutputStream gzip;
+    private final Writer writer;
+    private final boolean skipUnchanged;
+    // Encoded entries by sort key, null when entries are written as they arrive; guarded by writer
+    private final SortedMap<String, List<String>> sortedEntries;
+    // Guarded by writer
+    private boolean finished;
+    private boolean unchanged;
+
+    public DefinitionStreamWriter(File destFile, Layout layout, DefinitionEncoder encoder, boolean gzip, ConversionMetrics metrics) throws IOException {
+        this(destFile, layout, encoder, gzip, metrics, false, false);
+    }
+
+    public DefinitionStreamWriter(File destFile, Layout layout, DefinitionEncoder encoder, boolean gzip, ConversionMetrics metrics,
+                                  boolean sorted, boolean skipUnchanged) throws IOException {
+        this.destFile = destFile;
+        this.stream = new DefinitionStream(layout, encoder);
+        this.metrics = metrics;
+        // One writer thread keeps the entries in arrival order, when it falls behind the submitting thread writes
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.failures = new ConcurrentLinkedQueue<>();
+        this.written = new AtomicInteger();
+        this.skipUnchanged = skipUnchanged;
+        this.sortedEntries = sorted ? new TreeMap<String, List<String>>() : null;
+
+        Path target = destFile.getAbsoluteFile().toPath();
+        Files.createDirectories(target.getParent());
+        this.temp = target.resolveSibling(String.format(".%s.tmp", destFile.getName()));
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        OutputStream out = Channels.newOutputStream(channel);
+        this.gzip = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+        this.writer = new BufferedWriter(new OutputStreamWriter(gzip ? this.gzip : out, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+        synchronized (writer) {
+            stream.writeHeader(writer);
+        }
+    }
+
+    @Override
+    public void write(final File destDir, final IResource resource) {
+        pending.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    if (sortedEntries != null) {
+                        // Encoded outside the lock, only adding to the map is serialized
+                        String encoded = stream.encode(resource);
+                        synchronized (writer) {
+                            addSortedEntry(destDir, resource, encoded);
+                        }
+                    }
+                    else {
+                        synchronized (writer) {
+                            writeEntry(resource);
+                        }
+                    }
+                    written.incrementAndGet();
+                    metrics.definitionWritten();
+                }
+                catch (Exception e) {
+                    failures.add(new DefinitionWriter.Failure(destFile, e));
+                }
+                finally {
+                    metrics.addTime(ConversionMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+                }
+            }
+        }));
+    }
+
+    private void writeEntry(IResource resource) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The output has already been completed.");
+        }
+
+        stream.writeEntry(writer, resource);
+    }
+
+    private void addSortedEntry(File destDir, IResource resource, String encoded) {
+        if (finished) {
+            throw new IllegalStateException("The output has already been completed.");
+        }
+
+        // Batch runs write a resource (e.g. a shared ValueSet) once for each schema, the destination keeps them apart
+        String key = String.format("%s\n%s/%s", destDir != null ? destDir.getPath() : "", resource.getResourceName(), resource.getId().getIdPart());
+        List<String> entries = sortedEntries.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>(1);
+            sortedEntries.put(key, entries);
+        }
+        entries.add(encoded);
+    }
+
+    /**
+     * Waits for all queued definitions, completes the document and moves it into place. If any definition could not
+     * be written the destination is left untouched.
+     */
+    @Override
+    public List<DefinitionWriter.Failure> awaitCompletion() throws InterruptedException {
+        Future<?> future;
+        while ((future = pending.poll()) != null) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                failures.add(new DefinitionWriter.Failure(destFile, e));
+            }
+        }
+
+        synchronized (writer) {
+            if (!finished) {
+                finished = true;
+                try {
+                    finish();
+                }
+                catch (IOException e) {
+                    failures.add(new DefinitionWriter.Failure(destFile, e));
+                }
+            }
+        }
+        return new ArrayList<>(failures);
+    }
+
+    private void finish() throws IOException {
+        try {
+            if (failures.isEmpty()) {
+                if (sortedEntries != null) {
+                    for (List<String> entries : sortedEntries.values()) {
+                        Collections.sort(entries);
+                        for (String encoded : entries) {
+                            stream.writeEncodedEntry(writer, encoded);
+                        }
+                    }
+                    sortedEntries.clear();
+                }
+                stream.writeFooter(writer);
+                writer.flush();
+                if (gzip != null) {
+                    gzip.finish();
+                }
+                channel.force(false);
+            }
+            writer.close();
+
+            if (failures.isEmpty()) {
+                Path target = destFile.getAbsoluteFile().toPath();
+                unchanged = skipUnchanged && ContentHash.matches(target, ContentHash.of(temp), Files.size(temp));
+                if (unchanged) {
+                    metrics.fileUnchanged();
+                }
+                else {
+                    moveIntoPlace(temp, target);
+                }
+            }
+        }
+        finally {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public int getWrittenCount() {
+        return written.get();
+    }
+
+    @Override
+    public List<File> getWrittenFiles() {
+        synchronized (writer) {
+            return finished && failures.isEmpty() && !unchanged ? Collections.singletonList(destFile) : Collections.<File>emptyList();
+        }
+    }
+
+    @Override
+    public List<File> getUnchangedFiles() {
+        synchronized (writer) {
+            return finished && unchanged ? Collections.singletonList(destFile) : Collections.<File>emptyList();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        synchronized (writer) {
+            if (!finished) {
+                // Closed without completing (e.g. the import failed), the partial file is discarded
+                finished = true;
+                try {
+                    channel.close();
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException e) {
+                    // Nothing was published, a leftover temporary file is overwritten by the next run
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes StructureDefinitions and ValueSets to the destination directory on a bounded pool of worker threads.
+ *
+ * Each definition is encoded into a temporary file in the destination directory and then renamed over the target,
+ * so a target file is either the previous version or the complete new one. Failures do not stop the remaining
+ * writes; they are collected and returned from awaitCompletion.
+ *
+ * When skipping unchanged files, each definition is encoded in memory first and compared (by SHA-256) with the target,
+ * a target that already holds exactly the new content is not touched, which keeps its modification time.
+ */
+public class DefinitionWriter implements DefinitionOutput {
+    public static class Failure {
+        private final File file;
+        private final Exception cause;
+
+        public Failure(File file, Exception cause) {
+            this.file = file;
+            this.cause = cause;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Exception getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s", file.getPath(), cause.toString());
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File destDir;
+    private final DefinitionEncoder encoder;
+    private final ExecutorService executor;
+    private final Queue<Future<?>> pending;
+    private final Queue<Failure> failures;
+    private final AtomicInteger written;
+    private final AtomicLong tempCounter;
+    private final ConversionMetrics metrics;
+    private final boolean skipUnchanged;
+    private final Queue<File> writtenFiles;
+    private final Queue<File> unchangedFiles;
+
+    // Writes pretty printed XML
+    public DefinitionWriter(File destDir, FhirContextProvider contextProvider, int threads) {
+        this(destDir, new DefinitionEncoder(contextProvider, OutputFormat.XML, false), threads, new ConversionMetrics());
+    }
+
+    public DefinitionWriter(File destDir, DefinitionEncoder encoder, int threads, ConversionMetrics metrics) {
+        this(destDir, encoder, threads, metrics, false);
+    }
+
+    public DefinitionWriter(File destDir, DefinitionEncoder encoder, int threads, ConversionMetrics metrics, boolean skipUnchanged) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        this.destDir = destDir;
+        this.encoder = encoder;
+        // Bounded queue, the submitting thread does the work itself when the workers fall behind
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.failures = new ConcurrentLinkedQueue<>();
+        this.written = new AtomicInteger();
+        this.tempCounter = new AtomicLong();
+        this.metrics = metrics;
+        this.skipUnchanged = skipUnchanged;
+        this.writtenFiles = new ConcurrentLinkedQueue<>();
+        this.unchangedFiles = new ConcurrentLinkedQueue<>();
+    }
+
+    public void write(IResource resource) {
+        write(destDir, resource);
+    }
+
+    // Safe to call from several threads, e.g. when importing several schemas into their own directories
+    @Override
+    public void write(File destDir, final IResource resource) {
+        final File destFile = new File(destDir, String.format("%s.%s", resource.getId().getIdPart(), encoder.getFileExtension()));
+        pending.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    if (skipUnchanged && !writeChangedFile(resource, destFile)) {
+                        unchangedFiles.add(destFile);
+                        metrics.fileUnchanged();
+                    }
+                    else {
+                        if (!skipUnchanged) {
+                            writeFile(resource, destFile);
+                        }
+                        writtenFiles.add(destFile);
+                        written.incrementAndGet();
+                        metrics.definitionWritten();
+                    }
+                }
+                catch (Exception e) {
+                    failures.add(new Failure(destFile, e));
+                }
+                finally {
+                    metrics.addTime(ConversionMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+                }
+            }
+        }));
+    }
+
+    private void writeFile(IResource resource, File destFile) throws IOException {
+        Path target = destFile.toPath();
+        // Not Files.createTempFile, the temp file becomes the output and should get the default permissions
+        Path temp = target.resolveSibling(String.format(".%s.%d.tmp", destFile.getName(), tempCounter.incrementAndGet()));
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE)) {
+                encoder.encode(resource, writer);
+                writer.flush();
+                channel.force(false);
+            }
+            moveIntoPlace(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Writes the file unless it already holds the encoded definition, returns whether it was written
+    private boolean writeChangedFile(IResource resource, File destFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            encoder.encode(resource, writer);
+        }
+        byte[] content = bytes.toByteArray();
+
+        Path target = destFile.toPath();
+        if (ContentHash.matches(target, ContentHash.of(content), content.length)) {
+            return false;
+        }
+
+        Path temp = target.resolveSibling(String.format(".%s.%d.tmp", destFile.getName(), tempCounter.incrementAndGet()));
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            moveIntoPlace(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Waits for all submitted definitions to be written and returns the failures, if any.
+     */
+    @Override
+    public List<Failure> awaitCompletion() throws InterruptedException {
+        Future<?> future;
+        while ((future = pending.poll()) != null) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                // Write tasks record their own failures, this is only reached for errors outside of writeFile
+                failures.add(new Failure(destDir, e));
+            }
+        }
+        return new ArrayList<>(failures);
+    }
+
+    @Override
+    public int getWrittenCount() {
+        return written.get();
+    }
+
+    @Override
+    public List<File> getWrittenFiles() {
+        return new ArrayList<>(writtenFiles);
+    }
+
+    @Override
+    public List<File> getUnchangedFiles() {
+        return new ArrayList<>(unchangedFiles);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,145 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.primitive.MarkdownDt;
+import ca.uhn.fhir.model.primitive.StringDt;
+import org.apache.ws.commons.schema.XmlSchemaAnnotation;
+import org.apache.ws.commons.schema.XmlSchemaAnnotationItem;
+import org.apache.ws.commons.schema.XmlSchemaDocumentation;
+import org.w3c.dom.NodeList;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Documentation text of schema annotations, extracted once per annotation.
+ *
+ * Entries are keyed by the identity of the annotation (schema objects compare by content), so an annotation shared
+ * through a group or attribute group is only read once however many types include it. The text and its short form
+ * are only extracted when first asked for, which lets the deferred values hand documentation to the serializer
+ * without holding it during generation. Safe to use from several threads.
+ *
+ * The schema DOM is not thread-safe, not even for reads (node lists cache lazily), and deferred values read it while
+ * other threads are still generating. Every read of documentation markup, deferred or not, holds the one DOM lock.
+ */
+class DocumentationCache {
+    static final String DEFAULT_DOCUMENTATION = "TODO: Description";
+    // Guards the documentation markup of every schema, sessions may read the same schema at the same time
+    private static final Object DOM_LOCK = new Object();
+
+    static final class Documentation {
+        private final XmlSchemaAnnotation annotation;
+        // Computed on first use, computing them twice in a race gives the same value
+        private volatile String text;
+        private volatile String shortText;
+
+        private Documentation(XmlSchemaAnnotation annotation) {
+            this.annotation = annotation;
+        }
+
+        public String getText() {
+            String result = text;
+            if (result == null) {
+                result = extract(annotation);
+                text = result;
+            }
+            return result;
+        }
+
+        // The text up to the first period
+        public String getShort() {
+            String result = shortText;
+            if (result == null) {
+                String documentation = getText();
+                int i = documentation.indexOf('.');
+                result = i >= 0 ? documentation.substring(0, i) : documentation;
+                shortText = result;
+            }
+            return result;
+        }
+    }
+
+    // Markdown value that takes its text from the documentation when it is first read (i.e. when it is serialized)
+    static final class DeferredMarkdownDt extends MarkdownDt {
+        private static final long serialVersionUID = 1L;
+
+        private final Documentation documentation;
+
+        DeferredMarkdownDt(Documentation documentation) {
+            this.documentation = documentation;
+        }
+
+        @Override
+        public String getValue() {
+            return documentation.getText();
+        }
+
+        @Override
+        public String getValueAsString() {
+            return documentation.getText();
+        }
+    }
+
+    // String value that takes the short form of the documentation when it is first read
+    static final class DeferredShortDt extends StringDt {
+        private static final long serialVersionUID = 1L;
+
+        private final Documentation documentation;
+
+        DeferredShortDt(Documentation documentation) {
+            this.documentation = documentation;
+        }
+
+        @Override
+        public String getValue() {
+            return documentation.getShort();
+        }
+
+        @Override
+        public String getValueAsString() {
+            return documentation.getShort();
+        }
+    }
+
+    // Text of the annotation's first documentation item, not cached; holds the DOM lock while reading the markup
+    static String extract(XmlSchemaAnnotation annotation) {
+        if (annotation != null) {
+            for (XmlSchemaAnnotationItem i : annotation.getItems()) {
+                if (i instanceof XmlSchemaDocumentation) {
+                    StringBuilder sb = new StringBuilder();
+                    synchronized (DOM_LOCK) {
+                        NodeList nl = ((XmlSchemaDocumentation)i).getMarkup();
+                        for (int idx = 0; idx < nl.getLength(); idx++) {
+                            sb.append(nl.item(idx).getTextContent());
+                        }
+                    }
+                    return sb.toString();
+                }
+            }
+        }
+
+        return DEFAULT_DOCUMENTATION;
+    }
+
+    private final Documentation none;
+    private final Map<XmlSchemaAnnotation, Documentation> entries;
+
+    DocumentationCache() {
+        this.none = new Documentation(null);
+        this.entries = new IdentityHashMap<>();
+    }
+
+    public Documentation get(XmlSchemaAnnotation annotation) {
+        if (annotation == null) {
+            return none;
+        }
+
+        synchronized (entries) {
+            Documentation documentation = entries.get(annotation);
+            if (documentation == null) {
+                documentation = new Documentation(annotation);
+                entries.put(annotation, documentation);
+            }
+            return documentation;
+        }
+    }
+}
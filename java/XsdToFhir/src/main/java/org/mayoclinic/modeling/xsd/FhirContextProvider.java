@@ -0,0 +1,81 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Holds the single DSTU2 FhirContext for a conversion run and hands out parsers bound to it.
+ *
+ * Building a FhirContext scans the whole HAPI model, so it is done once. The context itself is thread-safe,
+ * parsers are not, so each thread gets its own reusable parser instance.
+ */
+public class FhirContextProvider {
+    private static class Holder {
+        private static final FhirContextProvider INSTANCE = new FhirContextProvider(FhirContext.forDstu2());
+    }
+
+    public static FhirContextProvider getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private final FhirContext context;
+    private final ThreadLocal<IParser> xmlParsers;
+    private final ThreadLocal<IParser> prettyXmlParsers;
+    private final ThreadLocal<IParser> jsonParsers;
+    private final ThreadLocal<IParser> prettyJsonParsers;
+
+    public FhirContextProvider(final FhirContext context) {
+        if (context == null) {
+            throw new IllegalArgumentException("context is null");
+        }
+
+        this.context = context;
+        this.xmlParsers = new ThreadLocal<IParser>() {
+            @Override
+            protected IParser initialValue() {
+                return context.newXmlParser();
+            }
+        };
+        this.prettyXmlParsers = new ThreadLocal<IParser>() {
+            @Override
+            protected IParser initialValue() {
+                return context.newXmlParser().setPrettyPrint(true);
+            }
+        };
+        this.jsonParsers = new ThreadLocal<IParser>() {
+            @Override
+            protected IParser initialValue() {
+                return context.newJsonParser();
+            }
+        };
+        this.prettyJsonParsers = new ThreadLocal<IParser>() {
+            @Override
+            protected IParser initialValue() {
+                return context.newJsonParser().setPrettyPrint(true);
+            }
+        };
+    }
+
+    public FhirContext getContext() {
+        return context;
+    }
+
+    // Parser used for reading resources (e.g. the FHIR base type profiles) and for compact XML output
+    public IParser getXmlParser() {
+        return xmlParsers.get();
+    }
+
+    // Parser used for writing generated definitions (the default output)
+    public IParser getPrettyXmlParser() {
+        return prettyXmlParsers.get();
+    }
+
+    // Parser used for writing generated definitions as JSON on a single line (e.g. NDJSON)
+    public IParser getJsonParser() {
+        return jsonParsers.get();
+    }
+
+    public IParser getPrettyJsonParser() {
+        return prettyJsonParsers.get();
+    }
+}
@@ -0,0 +1,136 @@
+package org.mayoclinic.modeling.xsd;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary cache of the FHIR base type profiles, each one as compact JSON.
+ *
+ * The cache is keyed by a fingerprint of the profile files in the specification directory (path, size and
+ * modification time), so it is ignored as soon as any profile changes. Reading maps the file instead of parsing
+ * the profile XML, the registry only parses the JSON of the profiles a run uses. Profiles are cached whole, so a
+ * base type is the same definition whether it came from the cache or from the specification.
+ */
+public class FhirTypeCache {
+    private static final int MAGIC = 0x58544643; // XTFC
+    private static final int VERSION = 2;
+
+    private final File cacheFile;
+    private final byte[] fingerprint;
+
+    public FhirTypeCache(File cacheFile, String fhirPath) {
+        this.cacheFile = cacheFile;
+        this.fingerprint = fingerprint(fhirPath);
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    private static byte[] fingerprint(String fhirPath) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String typeName : FhirTypeRegistry.getTypeNames()) {
+                File profileFile = FhirTypeRegistry.getProfileFile(fhirPath, typeName);
+                digest.update(profileFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+                digest.update(ByteBuffer.allocate(16).putLong(profileFile.length()).putLong(profileFile.lastModified()).array());
+            }
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached profiles (as JSON) keyed by FHIR type name, or null if there is no cache or it does not
+     * match the current profiles.
+     */
+    public Map<String, String> read() {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            byte[] cachedFingerprint = new byte[buffer.getInt()];
+            buffer.get(cachedFingerprint);
+            if (!Arrays.equals(cachedFingerprint, fingerprint)) {
+                return null;
+            }
+
+            int count = buffer.getInt();
+            Map<String, String> profiles = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String typeName = readString(buffer);
+                profiles.put(typeName, readString(buffer));
+            }
+            return profiles;
+        }
+        catch (IOException | RuntimeException e) {
+            // A damaged or truncated cache is treated as a miss, it is rewritten after the profiles are loaded
+            return null;
+        }
+    }
+
+    public void write(Map<String, String> profiles) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fingerprint.length);
+            out.write(fingerprint);
+            out.writeInt(profiles.size());
+            for (Map.Entry<String, String> entry : profiles.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+
+        Path target = cacheFile.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Strings are stored as a length (-1 for null) followed by UTF-8 bytes
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
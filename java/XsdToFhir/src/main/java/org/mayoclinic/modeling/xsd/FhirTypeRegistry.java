@@ -0,0 +1,209 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Registry of the FHIR base type StructureDefinitions that imported types map to.
+ *
+ * Profiles are read from the published specification (or from the cache, when it matches) the first time a type is
+ * requested, so a schema that only uses a handful of types only pays for those. preload reads all of them in
+ * parallel.
+ */
+public class FhirTypeRegistry {
+    // FHIR type name -> profile file name (without .profile.xml) in the published specification
+    private static final Map<String, String> PROFILE_FILES;
+    static {
+        Map<String, String> profileFiles = new LinkedHashMap<>();
+        profileFiles.put("Element", "element");
+        profileFiles.put("instant", "instant");
+        profileFiles.put("time", "time");
+        profileFiles.put("date", "date");
+        profileFiles.put("dateTime", "dateTime");
+        profileFiles.put("decimal", "decimal");
+        profileFiles.put("integer", "integer");
+        profileFiles.put("unsignedInt", "unsignedInt");
+        profileFiles.put("positiveInt", "positiveInt");
+        profileFiles.put("boolean", "boolean");
+        profileFiles.put("base64Binary", "base64binary");
+        profileFiles.put("uri", "uri");
+        profileFiles.put("oid", "oid");
+        profileFiles.put("string", "string");
+        profileFiles.put("code", "code");
+        profileFiles.put("id", "id");
+        profileFiles.put("markdown", "markdown");
+        profileFiles.put("Ratio", "ratio");
+        profileFiles.put("Quantity", "quantity");
+        profileFiles.put("Period", "period");
+        profileFiles.put("Range", "range");
+        profileFiles.put("Coding", "coding");
+        profileFiles.put("CodeableConcept", "codeableconcept");
+        profileFiles.put("Attachment", "attachment");
+        profileFiles.put("HumanName", "humanname");
+        profileFiles.put("Address", "address");
+        profileFiles.put("ContactPoint", "contactpoint");
+        profileFiles.put("Timing", "timing");
+        profileFiles.put("Identifier", "identifier");
+        profileFiles.put("Signature", "signature");
+        profileFiles.put("Annotation", "annotation");
+        PROFILE_FILES = Collections.unmodifiableMap(profileFiles);
+    }
+
+    public static Collection<String> getTypeNames() {
+        return PROFILE_FILES.keySet();
+    }
+
+    public static File getProfileFile(String fhirPath, String typeName) {
+        return new File(fhirPath, String.format("%s.profile.xml", PROFILE_FILES.get(typeName)));
+    }
+
+    public static FhirTypeRegistry fromFhirPath(String fhirPath, FhirContextProvider contextProvider) {
+        return new FhirTypeRegistry(fhirPath, contextProvider, null, null);
+    }
+
+    // Registry that takes the base types from the cache when it matches the profiles under fhirPath
+    public static FhirTypeRegistry fromFhirPath(String fhirPath, FhirContextProvider contextProvider, FhirTypeCache cache) {
+        return new FhirTypeRegistry(fhirPath, contextProvider, cache, null);
+    }
+
+    // As above, adding the time spent reading profiles to the given metrics
+    public static FhirTypeRegistry fromFhirPath(String fhirPath, FhirContextProvider contextProvider, FhirTypeCache cache, ConversionMetrics metrics) {
+        return new FhirTypeRegistry(fhirPath, contextProvider, cache, metrics);
+    }
+
+    // Registry over definitions that have already been loaded, types not in the list are unknown
+    public static FhirTypeRegistry fromDefinitions(Iterable<StructureDefinition> fhirTypes) {
+        FhirTypeRegistry registry = new FhirTypeRegistry(null, null, null, null);
+        for (StructureDefinition sd : fhirTypes) {
+            registry.definitions.put(sd.getName(), sd);
+        }
+        return registry;
+    }
+
+    private final String fhirPath;
+    private final FhirContextProvider contextProvider;
+    private final ConcurrentMap<String, StructureDefinition> definitions;
+    private final FhirTypeCache cache;
+    // Profiles read from the cache (as JSON), null if it did not match
+    private final Map<String, String> cachedProfiles;
+    private final boolean cacheHit;
+    private final ConversionMetrics metrics;
+
+    private FhirTypeRegistry(String fhirPath, FhirContextProvider contextProvider, FhirTypeCache cache, ConversionMetrics metrics) {
+        this.fhirPath = fhirPath;
+        this.contextProvider = contextProvider;
+        this.definitions = new ConcurrentHashMap<>();
+        this.cache = cache;
+        this.metrics = metrics;
+
+        this.cachedProfiles = cache != null ? cache.read() : null;
+        this.cacheHit = cachedProfiles != null;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * Returns the definition for the given FHIR type name, loading it if necessary, or null if the type is not
+     * one of the known base types.
+     */
+    public StructureDefinition get(String typeName) {
+        StructureDefinition sd = definitions.get(typeName);
+        if (sd != null || contextProvider == null || !PROFILE_FILES.containsKey(typeName)) {
+            return sd;
+        }
+
+        // Only blocks callers asking for the same type while it loads
+        return definitions.computeIfAbsent(typeName, new Function<String, StructureDefinition>() {
+            @Override
+            public StructureDefinition apply(String name) {
+                return load(name);
+            }
+        });
+    }
+
+    /**
+     * Loads all known base types that are not loaded yet, using the given number of threads.
+     */
+    public void preload(int threads) throws InterruptedException {
+        if (contextProvider == null) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<StructureDefinition>> tasks = new ArrayList<>();
+            for (final String typeName : PROFILE_FILES.keySet()) {
+                tasks.add(new Callable<StructureDefinition>() {
+                    @Override
+                    public StructureDefinition call() {
+                        return get(typeName);
+                    }
+                });
+            }
+
+            for (Future<StructureDefinition> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException)e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Writes all base types to the cache if the cache did not match, loading any that were not needed by the run.
+     */
+    public void updateCache(int threads) throws IOException, InterruptedException {
+        if (cache == null || cacheHit) {
+            return;
+        }
+
+        preload(threads);
+        Map<String, String> profiles = new LinkedHashMap<>();
+        for (String typeName : PROFILE_FILES.keySet()) {
+            profiles.put(typeName, contextProvider.getJsonParser().encodeResourceToString(definitions.get(typeName)));
+        }
+        cache.write(profiles);
+    }
+
+    private StructureDefinition load(String typeName) {
+        long start = System.nanoTime();
+        try {
+            if (cachedProfiles != null && cachedProfiles.containsKey(typeName)) {
+                return contextProvider.getJsonParser().parseResource(StructureDefinition.class, cachedProfiles.get(typeName));
+            }
+
+            File profileFile = getProfileFile(fhirPath, typeName);
+            try (Reader reader = new InputStreamReader(new FileInputStream(profileFile), StandardCharsets.UTF_8)) {
+                return contextProvider.getXmlParser().parseResource(StructureDefinition.class, reader);
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException(String.format("Could not load FHIR type %s from %s.", typeName, profileFile.getPath()), e);
+            }
+        }
+        finally {
+            if (metrics != null) {
+                metrics.addTime(ConversionMetrics.Phase.LOAD_FHIR_TYPES, System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.apache.ws.commons.schema.XmlSchemaSimpleType;
+
+import javax.xml.namespace.QName;
+import java.io.Closeable;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Conversion state kept between reads of a schema (watch mode): the dependency graph of the last read, with the
+ * signature of every type, and the definition every type imported so far resolved to.
+ *
+ * Each update only regenerates the types whose signature changed, the types that refer to them as a base or element
+ * type, and in turn the types referring to any of those that now resolves to a different definition or is a simple
+ * type. Every other type keeps the definition it resolved to last time.
+ *
+ * Every update runs on the same engine, close the conversion once it is no longer used to stop its generation pool.
+ */
+class IncrementalConversion implements Closeable {
+    private final String modelName;
+    private final FhirTypeRegistry fhirTypes;
+    private final FhirContextProvider contextProvider;
+    private final XsdImportOptions options;
+    private XsdImportEngine engine;
+    private Map<QName, StructureDefinition> resolved;
+    // Urls of the definitions handed to the sink so far
+    private Set<String> emitted;
+    // Graph of the previous update, null before the first one
+    private TypeDependencyGraph previousGraph;
+    private Map<QName, StructureDefinition> removed;
+
+    IncrementalConversion(String modelName, FhirTypeRegistry fhirTypes, FhirContextProvider contextProvider, XsdImportOptions options) {
+        this.modelName = modelName;
+        this.fhirTypes = fhirTypes;
+        this.contextProvider = contextProvider;
+        this.options = options;
+        this.engine = new XsdImportEngine(fhirTypes, contextProvider, options);
+        this.resolved = new HashMap<>();
+        this.emitted = new HashSet<>();
+        this.removed = Collections.emptyMap();
+    }
+
+    // Date of the definitions of the following updates, null for the current time
+    public void setDate(Date date) {
+        if (!Objects.equals(date, options.getDate())) {
+            options.setDate(date);
+            // The engine works on a copy of the options
+            engine.close();
+            engine = new XsdImportEngine(fhirTypes, contextProvider, options);
+        }
+    }
+
+    /**
+     * Converts the types affected by changes since the previous update (every type on the first one), handing their
+     * definitions to the sink, and returns their names. If the conversion fails the state is left as it was.
+     */
+    public Set<QName> update(XmlSchema schema, final Consumer<IResource> sink) {
+        TypeDependencyGraph graph = TypeDependencyGraph.build(schema);
+        Set<QName> current = graph.getTypeNames();
+
+        Set<QName> previous = previousGraph != null ? previousGraph.getTypeNames() : Collections.<QName>emptySet();
+        Set<QName> changed = new LinkedHashSet<>();
+        for (QName typeName : current) {
+            if (!previous.contains(typeName) || !graph.getSignature(typeName).getText().equals(previousGraph.getSignature(typeName).getText())) {
+                changed.add(typeName);
+            }
+        }
+        for (QName typeName : previous) {
+            if (!current.contains(typeName)) {
+                changed.add(typeName);
+            }
+        }
+
+        Set<QName> pending = new LinkedHashSet<>();
+        for (QName typeName : changed) {
+            if (current.contains(typeName)) {
+                pending.add(typeName);
+            }
+            addReferrers(pending, graph.getReferrers(typeName), Collections.<QName>emptySet());
+            // Types that referred to a removed type are only found in the previous graph
+            if (previous.contains(typeName) && !current.contains(typeName)) {
+                for (QName referrer : previousGraph.getReferrers(typeName)) {
+                    if (current.contains(referrer)) {
+                        pending.add(referrer);
+                    }
+                }
+            }
+        }
+
+        // Expanded snapshots repeat the elements of every base type, a change reaches all types derived from it
+        if (options.getExpandSnapshots()) {
+            // Types already pending as referrers still pass the change on to their own derived types
+            Set<QName> visited = new HashSet<>(changed);
+            Deque<QName> queue = new ArrayDeque<>(changed);
+            while (!queue.isEmpty()) {
+                for (QName derivedType : graph.getDerivedTypes(queue.poll())) {
+                    pending.add(derivedType);
+                    if (visited.add(derivedType)) {
+                        queue.add(derivedType);
+                    }
+                }
+            }
+        }
+
+        Map<QName, StructureDefinition> updated = new HashMap<>(resolved);
+        updated.keySet().retainAll(current);
+        final Set<String> updatedEmitted = Collections.synchronizedSet(new HashSet<>(emitted));
+        Consumer<IResource> recordingSink = new Consumer<IResource>() {
+            @Override
+            public void accept(IResource resource) {
+                if (resource instanceof StructureDefinition) {
+                    updatedEmitted.add(((StructureDefinition)resource).getUrl());
+                }
+                sink.accept(resource);
+            }
+        };
+        Set<QName> converted = new LinkedHashSet<>();
+        while (!pending.isEmpty()) {
+            Map<QName, StructureDefinition> seed = new HashMap<>(updated);
+            seed.keySet().removeAll(pending);
+            Map<QName, StructureDefinition> result = engine.importTypes(schema, modelName, recordingSink, seed, pending);
+            converted.addAll(pending);
+
+            Set<QName> next = new LinkedHashSet<>();
+            for (Map.Entry<QName, StructureDefinition> entry : result.entrySet()) {
+                StructureDefinition previousDefinition = updated.put(entry.getKey(), entry.getValue());
+                // A simple type can take its values from its base, its referrers bind to them even if it resolves the same
+                if (previousDefinition != null && (!isSameDefinition(previousDefinition, entry.getValue())
+                        || graph.getSchemaType(entry.getKey()) instanceof XmlSchemaSimpleType)) {
+                    addReferrers(next, graph.getReferrers(entry.getKey()), converted);
+                }
+            }
+            pending = next;
+        }
+
+        // Removed types whose definition was written and isn't what any remaining type resolves to
+        Set<String> resolvedUrls = new HashSet<>();
+        for (StructureDefinition definition : updated.values()) {
+            resolvedUrls.add(definition.getUrl());
+        }
+        Map<QName, StructureDefinition> updatedRemoved = new LinkedHashMap<>();
+        for (QName typeName : previous) {
+            StructureDefinition definition = resolved.get(typeName);
+            if (!current.contains(typeName) && definition != null && !resolvedUrls.contains(definition.getUrl())
+                    && updatedEmitted.remove(definition.getUrl())) {
+                updatedRemoved.put(typeName, definition);
+            }
+        }
+
+        resolved = updated;
+        emitted = updatedEmitted;
+        previousGraph = graph;
+        removed = updatedRemoved;
+        return converted;
+    }
+
+    // Definitions (name, url and id) of the types the last update removed, their written output is out of date
+    public Map<QName, StructureDefinition> getRemoved() {
+        return Collections.unmodifiableMap(removed);
+    }
+
+    private static void addReferrers(Set<QName> typeNames, Set<QName> referrers, Set<QName> exclude) {
+        for (QName referrer : referrers) {
+            if (!exclude.contains(referrer)) {
+                typeNames.add(referrer);
+            }
+        }
+    }
+
+    // References to a definition only use its name and url
+    private static boolean isSameDefinition(StructureDefinition a, StructureDefinition b) {
+        return b != null && Objects.equals(a.getUrl(), b.getUrl()) && Objects.equals(a.getName(), b.getName());
+    }
+
+    @Override
+    public void close() {
+        engine.close();
+    }
+}
@@ -1,46 +1,161 @@
 package org.mayoclinic.modeling.xsd;
 
-import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import ca.uhn.fhir.model.dstu2.resource.ValueSet;
 import org.apache.ws.commons.schema.XmlSchema;
 import org.apache.ws.commons.schema.XmlSchemaCollection;
+import org.apache.ws.commons.schema.XmlSchemaExternal;
+import org.xml.sax.InputSource;
 
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.namespace.QName;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * Created by Bryn on 12/1/2015.
  */
 public class Main {
-    private String source;
+    private static final long WATCH_SETTLE_MILLIS = 100;
+
+    private List<String> sources;
+    private String manifest;
     private String dest;
     private String modelName;
     private String fhirPath;
+    private int threads;
+    private boolean preloadFhirTypes;
+    private String fhirCache;
+    private String metricsPath;
+    private String output;
+    private String format;
+    private boolean gzip;
+    private String packageName;
+    private String packageVersion;
+    private String publisher;
+    private String publisherContact;
+    private String publisherUrl;
+    private boolean compact;
+    private List<String> namespaceModels;
+    private List<String> builtInTypes;
+    private boolean deferDocumentation;
+    private boolean expandSnapshots;
+    // Bytes of definitions a session keeps in memory before spilling, 0 to write them as they are generated
+    private long memoryBudget;
+    private String spillDirectory;
+    private boolean watch;
+    private String dependencyGraphPath;
+    private String serve;
+    private String schemaRoot;
+    private boolean remoteImports;
+    private boolean reproducible;
+    // Date of every definition of a run, taken from the sources in reproducible runs and from the clock otherwise
+    private Date sourceDate;
+    private final ConversionMetrics metrics;
+    private final ValueSetCache valueSets;
+    private final FhirContextProvider contextProvider;
+
+    Main(FhirContextProvider contextProvider) {
+        this.contextProvider = contextProvider;
+        this.metrics = new ConversionMetrics();
+        // Identical enumerations in any of the schemas of a run share one ValueSet
+        this.valueSets = new ValueSetCache();
+    }
 
     public static void main(String[] args) throws Exception {
-        Main self = new Main();
-        self.source = getParam(args, "source");
+        run(args, FhirContextProvider.getInstance());
+    }
+
+    // Runs the converter on the given FHIR context, e.g. a new one to time a cold start
+    public static void run(String[] args, FhirContextProvider contextProvider) throws Exception {
+        Main self = new Main(contextProvider);
+        self.sources = getParams(args, "source");
+        self.manifest = getParam(args, "manifest");
         self.dest = getParam(args, "dest");
         self.modelName = getParam(args, "modelName");
         self.fhirPath = getParam(args, "fhirPath");
-        if (self.source == null || self.dest == null) {
+        String threads = getParam(args, "threads");
+        self.threads = threads != null ? Integer.parseInt(threads) : Runtime.getRuntime().availableProcessors();
+        self.preloadFhirTypes = hasFlag(args, "preloadFhirTypes");
+        self.fhirCache = getParam(args, "fhirCache");
+        self.metricsPath = getParam(args, "metrics");
+        self.output = getParam(args, "output");
+        self.format = getParam(args, "format");
+        self.gzip = hasFlag(args, "gzip");
+        self.packageName = getParam(args, "packageName");
+        self.packageVersion = getParam(args, "packageVersion");
+        self.publisher = getParam(args, "publisher");
+        self.publisherContact = getParam(args, "publisherContact");
+        self.publisherUrl = getParam(args, "publisherUrl");
+        self.compact = hasFlag(args, "compact");
+        self.namespaceModels = getParams(args, "namespaceModel");
+        self.builtInTypes = getParams(args, "builtInType");
+        self.deferDocumentation = hasFlag(args, "deferDocumentation");
+        self.expandSnapshots = hasFlag(args, "expandSnapshots");
+        String memoryBudget = getParam(args, "memoryBudget");
+        self.memoryBudget = memoryBudget != null ? Long.parseLong(memoryBudget) * 1024 * 1024 : 0;
+        self.spillDirectory = getParam(args, "spillDirectory");
+        self.watch = hasFlag(args, "watch");
+        self.dependencyGraphPath = getParam(args, "dependencyGraph");
+        self.serve = getParam(args, "serve");
+        self.schemaRoot = getParam(args, "schemaRoot");
+        self.remoteImports = hasFlag(args, "remoteImports");
+        self.reproducible = hasFlag(args, "reproducible");
+        if (self.serve != null) {
+            self.serve();
+        } else if ((self.sources.isEmpty() && self.manifest == null) || self.dest == null) {
             System.out.println("XSD to FHIR StructureDefinition Converter");
-            System.out.println("This tool takes 3 parameters:");
-            System.out.println("-source: XSD 1.1 XML representation of a model (required)");
+            System.out.println("Options:");
+            System.out.println("-source: XSD 1.1 XML representation of a model (required, may be repeated)");
+            System.out.println("-manifest: file listing source XSDs, one per line (instead of or in addition to -source)");
             System.out.println("-dest: directory that will contain the resulting structure definitions, one for each type defined in the source XSD (required)");
+            System.out.println("       with several sources, each schema is written to a subdirectory named after its file");
+            System.out.println("       for bundle, ndjson and package output, the file that will contain all structure definitions");
+            System.out.println("-output: files (one file per structure definition, the default), bundle (a single collection Bundle), ndjson (one definition per line)");
+            System.out.println("       or package (a FHIR package archive with package.json and .index.json)");
+            System.out.println("-format: xml or json encoding of the structure definitions (defaults to xml, ndjson and package are always json)");
+            System.out.println("-compact: write without line breaks and indentation (ndjson is always compact)");
+            System.out.println("-gzip: compress bundle, ndjson or package output (a package is usually published gzipped, as a .tgz)");
+            System.out.println("-packageName: name of the package for package output (defaults to the lower case model name)");
+            System.out.println("-packageVersion: version of the package for package output (defaults to 0.1.0)");
+            System.out.println("-publisher: publisher of the structure definitions and ValueSets, and author of a package (defaults to Generated by Xsd-to-FHIR)");
+            System.out.println("-publisherContact: name of the publisher's contact");
+            System.out.println("-publisherUrl: url of the publisher's contact");
             System.out.println("-modelName: name of the model being imported");
+            System.out.println("-namespaceModel: namespace=model, imports the types of a namespace into another model (may be repeated)");
+            System.out.println("-builtInType: xsdType=fhirType, maps a built-in XSD type (e.g. token=code) and the types derived from it (may be repeated)");
             System.out.println("-fhirPath: directory of the published Fhir specification");
+            System.out.println("-fhirCache: file used to cache the FHIR base types between runs, rebuilt when the specification changes");
+            System.out.println("-preloadFhirTypes: load all FHIR base types up front instead of as they are used");
+            System.out.println("-expandSnapshots: include the elements inherited from base types in each snapshot, and write the type's own elements as a differential");
+            System.out.println("-deferDocumentation: read element documentation from the schema when writing instead of when generating");
+            System.out.println("-memoryBudget: megabytes of definitions kept in memory while importing, the rest is spilled to a file;");
+            System.out.println("       the definitions are then written once the import is done instead of as they are generated");
+            System.out.println("-spillDirectory: directory of the spill file (defaults to the temporary directory)");
+            System.out.println("-threads: number of threads used to generate and write the structure definitions (defaults to the number of processors)");
+            System.out.println("-metrics: file to write a JSON summary of phase timings and counters to, - for standard out");
+            System.out.println("-dependencyGraph: file to write the type dependency graph of the source schema to, as DOT if it ends in .dot and JSON otherwise");
+            System.out.println("-serve: port to serve conversions on instead of converting sources (POST a schema to http://localhost:<port>/convert, only -fhirPath is required)");
+            System.out.println("-schemaRoot: directory the served conversions may read included and imported schemas from (none without it)");
+            System.out.println("-remoteImports: let served conversions read included and imported schemas from http and https URLs");
+            System.out.println("-reproducible: date definitions from SOURCE_DATE_EPOCH or the newest source file, write them in a fixed order,");
+            System.out.println("       and leave output files that would not change untouched; lists the written and unchanged files");
+            System.out.println("-watch: keep running and regenerate the types affected by each change to the source schema or its includes");
+        } else if (self.watch) {
+            self.watch();
         } else {
             self.execute();
         }
     }
 
-    private static String getParam(String[] args, String name) {
+    static String getParam(String[] args, String name) {
         for (int i = 0; i < args.length - 1; i++) {
             if (args[i].equals("-"+name)) {
                 return args[i+1];
@@ -49,82 +164,452 @@ public class Main {
         return null;
     }
 
+    static List<String> getParams(String[] args, String name) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-"+name)) {
+                values.add(args[i+1]);
+            }
+        }
+        return values;
+    }
+
+    static boolean hasFlag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals("-"+name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void execute() throws Exception {
+        long runStart = System.nanoTime();
 
-        // Load XSD
-        File schemaFile = new File(source);
-        InputStream is = new FileInputStream(schemaFile);
+        // Load XSDs, schemas share one collection so includes and imports common to several of them are read once
+        long start = System.nanoTime();
+        List<File> schemaFiles = getSchemaFiles();
         XmlSchemaCollection schemaCol = new XmlSchemaCollection();
-        schemaCol.setBaseUri(schemaFile.getParent());
-        XmlSchema schema = schemaCol.read(new StreamSource(is));
-
-        if (!Files.exists(Paths.get(dest))) {
-            Files.createDirectory(Paths.get(dest));
-        }
-
-        List<StructureDefinition> fhirTypes = loadFhirTypes(fhirPath);
-
-        for (StructureDefinition sd : XsdImporter.fromSchema(schema, modelName, fhirTypes, new XsdImportOptions())) {
-            File destFile = new File(dest, String.format("%s.xml", sd.getId()));
-            FileWriter fw = new FileWriter(destFile);
-            FhirContext ctx = FhirContext.forDstu2();
-
-            ctx.newXmlParser().setPrettyPrint(true).encodeResourceToWriter(sd, fw);
-            //new XmlParser().setOutputStyle(IParser.OutputStyle.PRETTY).compose(new FileOutputStream(destFile), sd);
-        }
-    }
-
-    private List<StructureDefinition> loadFhirTypes(String fhirPath) {
-        List<StructureDefinition> fhirTypes = new ArrayList<StructureDefinition>();
-
-        fhirTypes.add(loadFhirType("element"));
-        fhirTypes.add(loadFhirType("instant"));
-        fhirTypes.add(loadFhirType("time"));
-        fhirTypes.add(loadFhirType("date"));
-        fhirTypes.add(loadFhirType("dateTime"));
-        fhirTypes.add(loadFhirType("decimal"));
-        fhirTypes.add(loadFhirType("integer"));
-        fhirTypes.add(loadFhirType("unsignedInt"));
-        fhirTypes.add(loadFhirType("positiveInt"));
-        fhirTypes.add(loadFhirType("boolean"));
-        fhirTypes.add(loadFhirType("base64binary"));
-        fhirTypes.add(loadFhirType("uri"));
-        fhirTypes.add(loadFhirType("oid"));
-        fhirTypes.add(loadFhirType("string"));
-        fhirTypes.add(loadFhirType("code"));
-        fhirTypes.add(loadFhirType("id"));
-        fhirTypes.add(loadFhirType("markdown"));
-        fhirTypes.add(loadFhirType("ratio"));
-        fhirTypes.add(loadFhirType("quantity"));
-        fhirTypes.add(loadFhirType("period"));
-        fhirTypes.add(loadFhirType("range"));
-        fhirTypes.add(loadFhirType("coding"));
-        fhirTypes.add(loadFhirType("codeableconcept"));
-        fhirTypes.add(loadFhirType("attachment"));
-        fhirTypes.add(loadFhirType("humanname"));
-        fhirTypes.add(loadFhirType("address"));
-        fhirTypes.add(loadFhirType("contactpoint"));
-        fhirTypes.add(loadFhirType("timing"));
-        fhirTypes.add(loadFhirType("identifier"));
-        fhirTypes.add(loadFhirType("signature"));
-        fhirTypes.add(loadFhirType("annotation"));
-
-        return fhirTypes;
-    }
-
-    private StructureDefinition loadFhirType(String typeName) {
-        return loadFhirType(new File(fhirPath, String.format("%s.profile.xml", typeName)));
-    }
-
-    private StructureDefinition loadFhirType(File typeFile) {
-        FileReader fr = null;
-        try {
-            fr = new FileReader(typeFile);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        Map<File, XmlSchema> schemas = new LinkedHashMap<>();
+        for (File schemaFile : schemaFiles) {
+            schemas.put(schemaFile, readSchema(schemaCol, schemaFile));
+        }
+        metrics.addTime(ConversionMetrics.Phase.READ_SCHEMAS, System.nanoTime() - start);
+        if (reproducible) {
+            sourceDate = getSourceDate(schemas.values());
+        }
+        else {
+            // One date for the whole run, so a resource shared by several schemas is the same resource each time
+            sourceDate = new Date(TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())));
+        }
+
+        if (dependencyGraphPath != null) {
+            if (schemas.size() != 1) {
+                throw new IllegalArgumentException("-dependencyGraph takes a single source schema.");
+            }
+            TypeDependencyGraph.build(schemas.values().iterator().next()).write(dependencyGraphPath);
+        }
+
+        FhirTypeCache cache = fhirCache != null ? new FhirTypeCache(new File(fhirCache), fhirPath) : null;
+        FhirTypeRegistry fhirTypes = FhirTypeRegistry.fromFhirPath(fhirPath, contextProvider, cache, metrics);
+        if (preloadFhirTypes) {
+            start = System.nanoTime();
+            fhirTypes.preload(threads);
+            metrics.addTime(ConversionMetrics.Phase.PRELOAD_FHIR_TYPES, System.nanoTime() - start);
+        }
+
+        List<DefinitionWriter.Failure> failures;
+        try (DefinitionOutput writer = createOutput()) {
+            // Generation also covers the writes that could not be handed off while it was running
+            start = System.nanoTime();
+            if (schemas.size() == 1) {
+                XsdImportOptions options = createOptions();
+                options.setParallelism(threads);
+                try (XsdImportEngine engine = new XsdImportEngine(fhirTypes, contextProvider, options)) {
+                    convert(schemas.values().iterator().next(), new File(dest), engine, writer);
+                }
+            }
+            else {
+                convertBatch(schemas, fhirTypes, writer);
+            }
+            metrics.addTime(ConversionMetrics.Phase.GENERATE, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            failures = writer.awaitCompletion();
+            metrics.addTime(ConversionMetrics.Phase.AWAIT_WRITES, System.nanoTime() - start);
+            if (reproducible) {
+                printSummary(writer);
+            }
+        }
+
+        start = System.nanoTime();
+        fhirTypes.updateCache(threads);
+        metrics.addTime(ConversionMetrics.Phase.UPDATE_CACHE, System.nanoTime() - start);
+
+        metrics.addTime(ConversionMetrics.Phase.TOTAL, System.nanoTime() - runStart);
+        if (metricsPath != null) {
+            metrics.write(metricsPath);
+        }
+
+        if (!failures.isEmpty()) {
+            for (DefinitionWriter.Failure failure : failures) {
+                System.err.println(String.format("Could not write %s", failure));
+            }
+            throw new IOException(String.format("%d structure definition(s) could not be written.", failures.size()));
+        }
+    }
+
+    private void watch() throws Exception {
+        List<File> schemaFiles = getSchemaFiles();
+        if (schemaFiles.size() != 1) {
+            throw new IllegalArgumentException("-watch takes a single source schema.");
         }
+        if (!writesFiles()) {
+            throw new IllegalArgumentException("-watch is only supported for files output.");
+        }
+
+        // Base types stay loaded between conversions, every one of them is loaded up front
+        FhirTypeCache cache = fhirCache != null ? new FhirTypeCache(new File(fhirCache), fhirPath) : null;
+        FhirTypeRegistry fhirTypes = FhirTypeRegistry.fromFhirPath(fhirPath, contextProvider, cache, metrics);
+        fhirTypes.preload(threads);
+        fhirTypes.updateCache(threads);
+
+        XsdImportOptions options = createOptions();
+        options.setParallelism(threads);
+        File schemaFile = schemaFiles.get(0);
+        try (IncrementalConversion conversion = new IncrementalConversion(modelName, fhirTypes, contextProvider, options);
+             WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            Set<Path> watchedFiles = convertChanges(conversion, schemaFile);
+            Set<Path> watchedDirs = new HashSet<>();
+            while (true) {
+                for (Path watchedFile : watchedFiles) {
+                    if (watchedDirs.add(watchedFile.getParent())) {
+                        watchedFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    }
+                }
+
+                boolean changed = false;
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || watchedFiles.contains(((Path)key.watchable()).resolve((Path)event.context()))) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    // Editors often save in several steps, wait for the files to settle
+                    key = watchService.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
 
-        FhirContext ctx = FhirContext.forDstu2();
-        return ctx.newXmlParser().parseResource(StructureDefinition.class, fr);
+                if (changed) {
+                    try {
+                        watchedFiles = convertChanges(conversion, schemaFile);
+                    }
+                    catch (Exception e) {
+                        // Likely a schema saved half way through an edit, the next save converts it
+                        System.err.println(String.format("Conversion failed: %s", e));
+                    }
+                }
+            }
+        }
+    }
+
+    private void serve() throws Exception {
+        // Base types are loaded once and shared by every request
+        FhirTypeCache cache = fhirCache != null ? new FhirTypeCache(new File(fhirCache), fhirPath) : null;
+        FhirTypeRegistry fhirTypes = FhirTypeRegistry.fromFhirPath(fhirPath, contextProvider, cache, metrics);
+        fhirTypes.preload(threads);
+        fhirTypes.updateCache(threads);
+
+        // Each request builds ValueSets of its own, a cache shared by every request would only ever grow
+        XsdImportOptions options = createOptions();
+        options.setValueSets(null);
+        // Requests run concurrently, each one is generated on its own thread; only local clients are served
+        ConversionServer server = new ConversionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(serve)),
+                contextProvider, fhirTypes, options, threads, schemaRoot != null ? new File(schemaRoot) : null, remoteImports);
+        server.start();
+        System.out.println(String.format("Serving conversions on http://%s:%d/convert",
+                server.getAddress().getHostString(), server.getAddress().getPort()));
+    }
+
+    // Converts what changed since the previous conversion and returns the files the schema was read from
+    private Set<Path> convertChanges(IncrementalConversion conversion, File schemaFile) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        XmlSchema schema = readSchema(new XmlSchemaCollection(), schemaFile);
+        if (reproducible) {
+            conversion.setDate(getSourceDate(Collections.singletonList(schema)));
+        }
+        final File destDir = new File(dest);
+        if (!Files.exists(destDir.toPath())) {
+            Files.createDirectories(destDir.toPath());
+        }
+
+        Set<QName> converted;
+        List<DefinitionWriter.Failure> failures;
+        try (final DefinitionOutput writer = createOutput()) {
+            converted = conversion.update(schema, new Consumer<IResource>() {
+                @Override
+                public void accept(IResource resource) {
+                    writer.write(destDir, resource);
+                }
+            });
+            failures = writer.awaitCompletion();
+            if (reproducible) {
+                printSummary(writer);
+            }
+        }
+
+        for (DefinitionWriter.Failure failure : failures) {
+            System.err.println(String.format("Could not write %s", failure));
+        }
+        // Types no longer in the schema don't leave their files behind
+        String fileExtension = (format != null ? OutputFormat.fromName(format) : OutputFormat.XML).name().toLowerCase(Locale.ROOT);
+        for (StructureDefinition definition : conversion.getRemoved().values()) {
+            File file = new File(destDir, String.format("%s.%s", definition.getId().getIdPart(), fileExtension));
+            if (Files.deleteIfExists(file.toPath())) {
+                System.out.println(String.format("Deleted %s", file.getPath()));
+            }
+        }
+        System.out.println(String.format("Converted %d type(s) in %d ms", converted.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+        Set<Path> sourceFiles = new HashSet<>();
+        addSourceFiles(schema, sourceFiles);
+        return sourceFiles;
+    }
+
+    private static void addSourceFiles(XmlSchema schema, Set<Path> sourceFiles) {
+        String sourceUri = schema.getSourceURI();
+        if (sourceUri != null && sourceUri.startsWith("file:")
+                && !sourceFiles.add(Paths.get(URI.create(sourceUri)).toAbsolutePath().normalize())) {
+            return;
+        }
+
+        for (XmlSchemaExternal external : schema.getExternals()) {
+            if (external.getSchema() != null) {
+                addSourceFiles(external.getSchema(), sourceFiles);
+            }
+        }
+    }
+
+    /*
+     * The date of a reproducible run: SOURCE_DATE_EPOCH (seconds since the epoch) if it's set, otherwise the newest
+     * modification time of the schema files and everything they include or import, to the second.
+     */
+    private static Date getSourceDate(Collection<XmlSchema> schemas) throws IOException {
+        String sourceDateEpoch = System.getenv("SOURCE_DATE_EPOCH");
+        if (sourceDateEpoch != null && !sourceDateEpoch.trim().isEmpty()) {
+            try {
+                return new Date(TimeUnit.SECONDS.toMillis(Long.parseLong(sourceDateEpoch.trim())));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid SOURCE_DATE_EPOCH %s, expected seconds since the epoch.", sourceDateEpoch));
+            }
+        }
+
+        Set<Path> sourceFiles = new HashSet<>();
+        for (XmlSchema schema : schemas) {
+            addSourceFiles(schema, sourceFiles);
+        }
+        long newest = 0;
+        for (Path sourceFile : sourceFiles) {
+            newest = Math.max(newest, Files.getLastModifiedTime(sourceFile).toMillis());
+        }
+        return new Date(TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(newest)));
+    }
+
+    private static void printSummary(DefinitionOutput writer) {
+        List<File> writtenFiles = writer.getWrittenFiles();
+        List<File> unchangedFiles = writer.getUnchangedFiles();
+        Collections.sort(writtenFiles);
+        Collections.sort(unchangedFiles);
+        for (File file : writtenFiles) {
+            System.out.println(String.format("Wrote %s", file.getPath()));
+        }
+        for (File file : unchangedFiles) {
+            System.out.println(String.format("Unchanged %s", file.getPath()));
+        }
+        System.out.println(String.format("%d file(s) written, %d unchanged", writtenFiles.size(), unchangedFiles.size()));
+    }
+
+    private DefinitionOutput createOutput() throws IOException {
+        OutputFormat outputFormat = format != null ? OutputFormat.fromName(format) : OutputFormat.XML;
+        if (output == null || output.equals("files")) {
+            if (gzip) {
+                throw new IllegalArgumentException("-gzip is only supported for bundle, ndjson and package output.");
+            }
+            return new DefinitionWriter(new File(dest), new DefinitionEncoder(contextProvider, outputFormat, compact), threads, metrics, reproducible);
+        }
+
+        if (output.equals("package")) {
+            if (format != null && outputFormat != OutputFormat.JSON) {
+                throw new IllegalArgumentException("Package output can only be written as json.");
+            }
+            String name = packageName != null ? packageName : (modelName != null ? modelName.toLowerCase(Locale.ROOT) : null);
+            // Entries are dated like the definitions, so a reproducible run writes the same archive
+            return new DefinitionPackageWriter(new File(dest), new DefinitionEncoder(contextProvider, OutputFormat.JSON, compact), gzip, metrics,
+                    name, packageVersion != null ? packageVersion : "0.1.0", createOptions().getPublisher(),
+                    sourceDate, reproducible, reproducible);
+        }
+
+        DefinitionStreamWriter.Layout layout;
+        if (output.equals("bundle")) {
+            layout = DefinitionStreamWriter.Layout.BUNDLE;
+        }
+        else if (output.equals("ndjson")) {
+            layout = DefinitionStreamWriter.Layout.NDJSON;
+        }
+        else {
+            throw new IllegalArgumentException(String.format("Unknown output %s, expected files, bundle, ndjson or package.", output));
+        }
+
+        if (layout == DefinitionStreamWriter.Layout.NDJSON) {
+            if (format != null && outputFormat != OutputFormat.JSON) {
+                throw new IllegalArgumentException("NDJSON output can only be written as json.");
+            }
+            return new DefinitionStreamWriter(new File(dest), layout, new DefinitionEncoder(contextProvider, OutputFormat.JSON, true), gzip, metrics,
+                    reproducible, reproducible);
+        }
+        return new DefinitionStreamWriter(new File(dest), layout, new DefinitionEncoder(contextProvider, outputFormat, compact), gzip, metrics,
+                reproducible, reproducible);
+    }
+
+    private boolean writesFiles() {
+        return output == null || output.equals("files");
+    }
+
+    private XsdImportOptions createOptions() {
+        XsdImportOptions options = new XsdImportOptions();
+        options.setMetrics(metrics);
+        options.setValueSets(valueSets);
+        if (publisher != null) {
+            options.setPublisher(publisher);
+        }
+        if (publisherContact != null) {
+            options.setPublisherContact(publisherContact);
+        }
+        if (publisherUrl != null) {
+            options.setPublisherUrl(publisherUrl);
+        }
+        options.setDeferDocumentation(deferDocumentation);
+        options.setExpandSnapshots(expandSnapshots);
+        options.setMemoryBudget(memoryBudget);
+        options.setSpillDirectory(spillDirectory != null ? new File(spillDirectory) : null);
+        options.setDate(sourceDate);
+        for (String namespaceModel : namespaceModels) {
+            // Split on the last =, the namespace may contain one but a model name can't
+            int separatorIndex = namespaceModel.lastIndexOf('=');
+            if (separatorIndex < 0) {
+                throw new IllegalArgumentException(String.format("Invalid namespace mapping %s, expected namespace=model.", namespaceModel));
+            }
+            options.setNamespaceModel(namespaceModel.substring(0, separatorIndex), namespaceModel.substring(separatorIndex + 1));
+        }
+        for (String builtInType : builtInTypes) {
+            int separatorIndex = builtInType.indexOf('=');
+            if (separatorIndex < 0) {
+                throw new IllegalArgumentException(String.format("Invalid built-in type mapping %s, expected xsdType=fhirType.", builtInType));
+            }
+            options.setBuiltInTypeMapping(builtInType.substring(0, separatorIndex), builtInType.substring(separatorIndex + 1));
+        }
+        return options;
+    }
+
+    private List<File> getSchemaFiles() throws IOException {
+        List<File> schemaFiles = new ArrayList<>();
+        for (String source : sources) {
+            schemaFiles.add(new File(source));
+        }
+
+        if (manifest != null) {
+            File manifestFile = new File(manifest);
+            for (String line : Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    File schemaFile = new File(line);
+                    schemaFiles.add(schemaFile.isAbsolute() ? schemaFile : new File(manifestFile.getAbsoluteFile().getParentFile(), line));
+                }
+            }
+        }
+
+        return schemaFiles;
+    }
+
+    private static XmlSchema readSchema(XmlSchemaCollection schemaCol, File schemaFile) throws IOException {
+        try (InputStream is = new FileInputStream(schemaFile)) {
+            schemaCol.setBaseUri(schemaFile.getAbsoluteFile().getParent());
+            // The system id keeps schemas that share a namespace apart in the collection
+            InputSource source = new InputSource(is);
+            source.setSystemId(schemaFile.getAbsoluteFile().toURI().toString());
+            return schemaCol.read(SchemaParser.parse(source, true), source.getSystemId());
+        }
+    }
+
+    private void convert(XmlSchema schema, final File destDir, XsdImportEngine engine, final DefinitionOutput writer) throws IOException {
+        if (writesFiles() && !Files.exists(destDir.toPath())) {
+            Files.createDirectories(destDir.toPath());
+        }
+
+        if (memoryBudget > 0) {
+            // The session keeps the definitions (beyond the budget in its spill file) until they are written
+            try (XsdImporter importer = engine.importSchema(schema, modelName)) {
+                for (StructureDefinition definition : importer.getDefinitions()) {
+                    writer.write(destDir, definition);
+                }
+                for (ValueSet valueSet : importer.getValueSets()) {
+                    writer.write(destDir, valueSet);
+                }
+            }
+            return;
+        }
+
+        // Definitions are written while the rest of the schema is still being imported
+        engine.importSchema(schema, modelName, new Consumer<IResource>() {
+            @Override
+            public void accept(IResource resource) {
+                writer.write(destDir, resource);
+            }
+        });
+    }
+
+    // Runs the importer for each schema in parallel, each into a subdirectory of dest named after the schema file
+    private void convertBatch(Map<File, XmlSchema> schemas, FhirTypeRegistry fhirTypes, final DefinitionOutput writer) throws Exception {
+        Map<String, XmlSchema> schemasByDest = new LinkedHashMap<>();
+        for (Map.Entry<File, XmlSchema> entry : schemas.entrySet()) {
+            String name = entry.getKey().getName();
+            int extensionIndex = name.lastIndexOf('.');
+            String destName = extensionIndex > 0 ? name.substring(0, extensionIndex) : name;
+            if (schemasByDest.put(destName, entry.getValue()) != null) {
+                throw new IllegalArgumentException(String.format("More than one source schema is named %s.", destName));
+            }
+        }
+
+        // Schemas already run in parallel, each one is generated on its own thread of one shared engine
+        final XsdImportEngine engine = new XsdImportEngine(fhirTypes, contextProvider, createOptions());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, schemasByDest.size()));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (final Map.Entry<String, XmlSchema> entry : schemasByDest.entrySet()) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        convert(entry.getValue(), new File(dest, entry.getKey()), engine, writer);
+                        return null;
+                    }
+                });
+            }
+
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+            engine.close();
+        }
     }
 }
@@ -0,0 +1,20 @@
+package org.mayoclinic.modeling.xsd;
+
+import java.util.Locale;
+
+/**
+ * Encoding used for written definitions.
+ */
+public enum OutputFormat {
+    XML,
+    JSON;
+
+    public static OutputFormat fromName(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown format %s, expected xml or json.", name));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.mayoclinic.modeling.xsd;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+
+/**
+ * Parses schema documents without resolving external entities, so a schema can't pull local files or URLs into the
+ * definitions through its DOCTYPE. The schema collection then reads the parsed document, includes and imports are
+ * still resolved by the collection's resolver.
+ */
+final class SchemaParser {
+    private SchemaParser() {
+    }
+
+    // Schemas coming from someone else may not have a DOCTYPE at all, local ones only lose their external entities
+    static Document parse(InputSource source, boolean allowDoctype) throws IOException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setXIncludeAware(false);
+        DocumentBuilder builder;
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", !allowDoctype);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            builder = factory.newDocumentBuilder();
+        }
+        catch (ParserConfigurationException e) {
+            throw new IllegalStateException("The XML parser can't be set up to read schemas safely.", e);
+        }
+        // Errors are thrown rather than printed as well
+        builder.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+            }
+
+            @Override
+            public void error(SAXParseException e) throws SAXException {
+                throw e;
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {
+                throw e;
+            }
+        });
+
+        try {
+            return builder.parse(source);
+        }
+        catch (SAXException e) {
+            String systemId = source.getSystemId();
+            throw new IllegalArgumentException(String.format("Can't read schema%s: %s", systemId != null ? " " + systemId : "", e.getMessage()), e);
+        }
+    }
+}
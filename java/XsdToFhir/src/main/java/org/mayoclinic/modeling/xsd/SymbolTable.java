@@ -0,0 +1,88 @@
+package org.mayoclinic.modeling.xsd;
+
+import javax.xml.namespace.QName;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The names the importer derives from a schema type name, computed once per QName and shared from then on.
+ *
+ * The model a namespace belongs to comes from the configured namespace to model mapping, namespaces that are not
+ * mapped belong to the default model (the model being imported). Safe to use from several threads.
+ */
+class SymbolTable {
+    static final class Symbol {
+        private final String qualifiedName;
+        private final String unqualifiedName;
+        private final String pathPrefix;
+
+        private Symbol(String qualifiedName, String unqualifiedName) {
+            this.qualifiedName = qualifiedName;
+            this.unqualifiedName = unqualifiedName;
+            this.pathPrefix = unqualifiedName + '.';
+        }
+
+        // Model qualified name, e.g. cts2.LocalIdentifier
+        public String getQualifiedName() {
+            return qualifiedName;
+        }
+
+        public String getUnqualifiedName() {
+            return unqualifiedName;
+        }
+
+        // Prefix of the paths of the type's elements, the type's root path followed by a dot
+        public String getPathPrefix() {
+            return pathPrefix;
+        }
+    }
+
+    private final String defaultModelName;
+    private final Map<String, String> namespaceModels;
+    private final ConcurrentMap<QName, Symbol> symbols;
+
+    SymbolTable(String defaultModelName, Map<String, String> namespaceModels) {
+        this.defaultModelName = defaultModelName;
+        this.namespaceModels = new HashMap<>(namespaceModels);
+        this.symbols = new ConcurrentHashMap<>();
+    }
+
+    public Symbol get(QName schemaTypeName) {
+        if (schemaTypeName == null) {
+            throw new IllegalArgumentException("schemaTypeName is null");
+        }
+
+        Symbol symbol = symbols.get(schemaTypeName);
+        if (symbol == null) {
+            Symbol newSymbol = createSymbol(schemaTypeName);
+            symbol = symbols.putIfAbsent(schemaTypeName, newSymbol);
+            if (symbol == null) {
+                symbol = newSymbol;
+            }
+        }
+        return symbol;
+    }
+
+    public String getModelName(String namespace) {
+        String modelName = namespaceModels.get(namespace);
+        return modelName != null ? modelName : defaultModelName;
+    }
+
+    private Symbol createSymbol(QName schemaTypeName) {
+        String modelName = getModelName(schemaTypeName.getNamespaceURI());
+        String localName = schemaTypeName.getLocalPart().replace('-', '_');
+        String qualifiedName = modelName != null && !modelName.isEmpty() ? modelName + '.' + localName : localName;
+        return new Symbol(qualifiedName, unqualify(qualifiedName));
+    }
+
+    private static String unqualify(String name) {
+        int qualifierIndex = name.indexOf('.');
+        if (qualifierIndex >= 0) {
+            return name.substring(qualifierIndex + 1);
+        }
+
+        return name;
+    }
+}
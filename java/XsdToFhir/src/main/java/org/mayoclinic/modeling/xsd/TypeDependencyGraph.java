@@ -0,0 +1,364 @@
+package org.mayoclinic.modeling.xsd;
+
+import org.apache.ws.commons.schema.*;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Which named types of a schema depend on which: a type depends on its base type and on the named types of its
+ * elements, attributes, list items and union members (as collected by {@link TypeSignature}).
+ *
+ * The graph covers the schema's own types and every type they lead to in other schemas of the collection, which are
+ * the types an import generates. Built-in XSD types and types that can't be found are not part of it. Strongly
+ * connected components (types that refer to each other) are grouped, and each component gets a level: components
+ * without dependencies outside themselves are on level 0, every other component is one level above its highest
+ * dependency. The components on one level don't depend on each other.
+ */
+class TypeDependencyGraph {
+    private static final class Node {
+        private final QName name;
+        private final XmlSchemaType schemaType;
+        private final TypeSignature signature;
+        private final List<QName> dependencies;
+        private final Set<QName> referrers;
+        private final Set<QName> derivedTypes;
+        private int component;
+        private int level;
+        // Tarjan's bookkeeping
+        private int index;
+        private int lowLink;
+        private boolean onStack;
+
+        private Node(QName name, XmlSchemaType schemaType, TypeSignature signature) {
+            this.name = name;
+            this.schemaType = schemaType;
+            this.signature = signature;
+            this.dependencies = new ArrayList<>();
+            this.referrers = new LinkedHashSet<>();
+            this.derivedTypes = new LinkedHashSet<>();
+            this.index = -1;
+        }
+    }
+
+    // A node whose dependencies are being visited
+    private static final class Frame {
+        private final Node node;
+        private final Iterator<QName> dependencies;
+
+        private Frame(Node node) {
+            this.node = node;
+            this.dependencies = node.dependencies.iterator();
+        }
+    }
+
+    private final Map<QName, Node> nodes;
+    private final List<List<QName>> components;
+    private final List<List<List<QName>>> levels;
+
+    private TypeDependencyGraph() {
+        this.nodes = new LinkedHashMap<>();
+        this.components = new ArrayList<>();
+        this.levels = new ArrayList<>();
+    }
+
+    public static TypeDependencyGraph build(XmlSchema schema) {
+        TypeDependencyGraph graph = new TypeDependencyGraph();
+        graph.addTypes(schema);
+        graph.computeComponents();
+        graph.computeLevels();
+        return graph;
+    }
+
+    // Schema types in the order they were found, the schema's own types first
+    public Set<QName> getTypeNames() {
+        return Collections.unmodifiableSet(nodes.keySet());
+    }
+
+    public XmlSchemaType getSchemaType(QName typeName) {
+        return getNode(typeName).schemaType;
+    }
+
+    public TypeSignature getSignature(QName typeName) {
+        return getNode(typeName).signature;
+    }
+
+    public List<QName> getDependencies(QName typeName) {
+        return Collections.unmodifiableList(getNode(typeName).dependencies);
+    }
+
+    public Set<QName> getReferrers(QName typeName) {
+        Node node = nodes.get(typeName);
+        return node != null ? Collections.unmodifiableSet(node.referrers) : Collections.<QName>emptySet();
+    }
+
+    // Types whose base type is the given type
+    public Set<QName> getDerivedTypes(QName typeName) {
+        Node node = nodes.get(typeName);
+        return node != null ? Collections.unmodifiableSet(node.derivedTypes) : Collections.<QName>emptySet();
+    }
+
+    public int getLevel(QName typeName) {
+        return getNode(typeName).level;
+    }
+
+    // Components in dependency order, each one after every component it depends on
+    public List<List<QName>> getComponents() {
+        return Collections.unmodifiableList(components);
+    }
+
+    // Components by level, lowest level first
+    public List<List<List<QName>>> getLevels() {
+        return Collections.unmodifiableList(levels);
+    }
+
+    private Node getNode(QName typeName) {
+        Node node = nodes.get(typeName);
+        if (node == null) {
+            throw new IllegalArgumentException(String.format("Type %s is not part of the graph.", typeName));
+        }
+        return node;
+    }
+
+    // Breadth first from the schema's own types, so every type is only looked at once
+    private void addTypes(XmlSchema schema) {
+        Deque<XmlSchemaType> queue = new ArrayDeque<>(schema.getSchemaTypes().values());
+        List<Node> added = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            XmlSchemaType schemaType = queue.poll();
+            if (nodes.containsKey(schemaType.getQName())) {
+                continue;
+            }
+
+            Node node = new Node(schemaType.getQName(), schemaType, TypeSignature.of(schemaType));
+            nodes.put(node.name, node);
+            added.add(node);
+            for (QName reference : node.signature.getReferences()) {
+                if (!XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(reference.getNamespaceURI()) && !nodes.containsKey(reference)) {
+                    XmlSchemaType referencedType = schema.getTypeByName(reference);
+                    if (referencedType == null && schema.getParent() != null) {
+                        referencedType = schema.getParent().getTypeByQName(reference);
+                    }
+                    // Unknown types are reported by the import
+                    if (referencedType != null) {
+                        queue.add(referencedType);
+                    }
+                }
+            }
+        }
+
+        for (Node node : added) {
+            for (QName reference : node.signature.getReferences()) {
+                Node dependency = nodes.get(reference);
+                if (dependency != null) {
+                    node.dependencies.add(reference);
+                    dependency.referrers.add(node.name);
+                }
+            }
+
+            Node base = nodes.get(getBaseTypeName(node.schemaType));
+            if (base != null) {
+                base.derivedTypes.add(node.name);
+            }
+        }
+    }
+
+    private static QName getBaseTypeName(XmlSchemaType schemaType) {
+        if (schemaType instanceof XmlSchemaComplexType) {
+            return ((XmlSchemaComplexType)schemaType).getBaseSchemaTypeName();
+        }
+        if (schemaType instanceof XmlSchemaSimpleType && ((XmlSchemaSimpleType)schemaType).getContent() instanceof XmlSchemaSimpleTypeRestriction) {
+            return ((XmlSchemaSimpleTypeRestriction)((XmlSchemaSimpleType)schemaType).getContent()).getBaseTypeName();
+        }
+        return null;
+    }
+
+    // Tarjan's algorithm with an explicit stack, long chains of base types would overflow the thread's stack
+    private void computeComponents() {
+        int nextIndex = 0;
+        Deque<Node> stack = new ArrayDeque<>();
+        Deque<Frame> calls = new ArrayDeque<>();
+        for (Node root : nodes.values()) {
+            if (root.index >= 0) {
+                continue;
+            }
+
+            nextIndex = visit(root, nextIndex, stack, calls);
+            while (!calls.isEmpty()) {
+                Frame frame = calls.peek();
+                if (frame.dependencies.hasNext()) {
+                    Node dependency = nodes.get(frame.dependencies.next());
+                    if (dependency.index < 0) {
+                        nextIndex = visit(dependency, nextIndex, stack, calls);
+                    }
+                    else if (dependency.onStack) {
+                        frame.node.lowLink = Math.min(frame.node.lowLink, dependency.index);
+                    }
+                    continue;
+                }
+
+                calls.pop();
+                Node node = frame.node;
+                if (!calls.isEmpty()) {
+                    Node caller = calls.peek().node;
+                    caller.lowLink = Math.min(caller.lowLink, node.lowLink);
+                }
+                if (node.lowLink == node.index) {
+                    List<QName> component = new ArrayList<>();
+                    Node member;
+                    do {
+                        member = stack.pop();
+                        member.onStack = false;
+                        member.component = components.size();
+                        component.add(member.name);
+                    } while (member != node);
+                    Collections.reverse(component);
+                    components.add(component);
+                }
+            }
+        }
+    }
+
+    private static int visit(Node node, int nextIndex, Deque<Node> stack, Deque<Frame> calls) {
+        node.index = nextIndex;
+        node.lowLink = nextIndex;
+        node.onStack = true;
+        stack.push(node);
+        calls.push(new Frame(node));
+        return nextIndex + 1;
+    }
+
+    // Components come out of Tarjan's algorithm after the components they depend on
+    private void computeLevels() {
+        for (List<QName> component : components) {
+            int level = 0;
+            for (QName typeName : component) {
+                Node node = nodes.get(typeName);
+                for (QName dependencyName : node.dependencies) {
+                    Node dependency = nodes.get(dependencyName);
+                    if (dependency.component != node.component) {
+                        level = Math.max(level, dependency.level + 1);
+                    }
+                }
+            }
+
+            for (QName typeName : component) {
+                nodes.get(typeName).level = level;
+            }
+            while (levels.size() <= level) {
+                levels.add(new ArrayList<List<QName>>());
+            }
+            levels.get(level).add(component);
+        }
+    }
+
+    // Types by fan-in (number of referring types), most referenced first
+    private List<Node> getNodesByFanIn() {
+        List<Node> sorted = new ArrayList<>(nodes.values());
+        Collections.sort(sorted, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return Integer.compare(b.referrers.size(), a.referrers.size());
+            }
+        });
+        return sorted;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(String.format("  \"types\": %d,\n", nodes.size()));
+        sb.append(String.format("  \"levels\": %d,\n", levels.size()));
+        sb.append("  \"cycles\": [");
+        String separator = "\n";
+        for (List<QName> component : components) {
+            if (component.size() > 1 || nodes.get(component.get(0)).dependencies.contains(component.get(0))) {
+                sb.append(separator).append("    ");
+                appendNames(sb, component);
+                separator = ",\n";
+            }
+        }
+        sb.append(separator.equals("\n") ? "],\n" : "\n  ],\n");
+        sb.append("  \"nodes\": [");
+        separator = "\n";
+        for (Node node : getNodesByFanIn()) {
+            sb.append(separator);
+            sb.append(String.format("    {\"name\": %s, \"fanIn\": %d, \"fanOut\": %d, \"level\": %d, \"component\": %d, \"dependencies\": ",
+                    quote(node.name.toString()), node.referrers.size(), node.dependencies.size(), node.level, node.component));
+            appendNames(sb, node.dependencies);
+            sb.append('}');
+            separator = ",\n";
+        }
+        sb.append(separator.equals("\n") ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // Nodes are labelled with their local names and sized by fan-in, types in a cycle are grouped in a cluster
+    public String toDot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("digraph dependencies {\n");
+        sb.append("  rankdir=BT;\n");
+        sb.append("  node [shape=box];\n");
+        for (int i = 0; i < components.size(); i++) {
+            List<QName> component = components.get(i);
+            String indent = "  ";
+            if (component.size() > 1) {
+                sb.append(String.format("  subgraph cluster_%d {\n", i));
+                sb.append("    style=dashed;\n");
+                indent = "    ";
+            }
+            for (QName typeName : component) {
+                Node node = nodes.get(typeName);
+                sb.append(String.format(Locale.ROOT, "%s%s [label=%s, fontsize=%d];\n", indent, quote(typeName.toString()),
+                        quote(String.format("%s (%d)", typeName.getLocalPart(), node.referrers.size())), 10 + Math.min(node.referrers.size(), 30)));
+            }
+            if (component.size() > 1) {
+                sb.append("  }\n");
+            }
+        }
+        for (Node node : nodes.values()) {
+            for (QName dependency : node.dependencies) {
+                sb.append(String.format("  %s -> %s;\n", quote(node.name.toString()), quote(dependency.toString())));
+            }
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Writes the graph to the given file, as DOT if the file name ends in .dot and as JSON otherwise, or as JSON to
+     * standard out if the path is "-".
+     */
+    public void write(String path) throws IOException {
+        if ("-".equals(path)) {
+            System.out.print(toJson());
+            return;
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)) {
+            writer.write(path.endsWith(".dot") ? toDot() : toJson());
+        }
+    }
+
+    private static void appendNames(StringBuilder sb, Collection<QName> names) {
+        sb.append('[');
+        String separator = "";
+        for (QName name : names) {
+            sb.append(separator).append(quote(name.toString()));
+            separator = ", ";
+        }
+        sb.append(']');
+    }
+
+    // Quoted and escaped for both JSON and DOT
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,122 @@
+package org.mayoclinic.modeling.xsd;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flight Recorder event for each schema type the importer builds a definition for, recorded as
+ * "XSD to FHIR / Type Resolution" with the type name, its kind and the number of elements generated.
+ *
+ * The project targets Java 8, which has no jdk.jfr API to compile against, so the event type is defined at runtime
+ * through jdk.jfr.EventFactory. Without Flight Recorder, or when the event is not enabled in the running recording,
+ * begin hands out an event that records nothing.
+ */
+final class TypeResolutionEvent {
+    private static final TypeResolutionEvent DISABLED = new TypeResolutionEvent(null, null, null);
+
+    // Reflective access to the dynamically defined event type, null when Flight Recorder is not available
+    private static class Support {
+        private static final Support INSTANCE = create();
+
+        private final Object factory;
+        private final Method newEvent;
+        private final Method isEnabled;
+        private final Method begin;
+        private final Method end;
+        private final Method shouldCommit;
+        private final Method set;
+        private final Method commit;
+
+        private Support(Object factory) throws ReflectiveOperationException {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            this.factory = factory;
+            this.newEvent = factory.getClass().getMethod("newEvent");
+            this.isEnabled = eventClass.getMethod("isEnabled");
+            this.begin = eventClass.getMethod("begin");
+            this.end = eventClass.getMethod("end");
+            this.shouldCommit = eventClass.getMethod("shouldCommit");
+            this.set = eventClass.getMethod("set", int.class, Object.class);
+            this.commit = eventClass.getMethod("commit");
+        }
+
+        private static Support create() {
+            try {
+                Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotation.newInstance(annotationType("jdk.jfr.Name"), "org.mayoclinic.modeling.xsd.TypeResolution"));
+                annotations.add(annotation.newInstance(annotationType("jdk.jfr.Label"), "Type Resolution"));
+                annotations.add(annotation.newInstance(annotationType("jdk.jfr.Category"), new String[] { "XSD to FHIR" }));
+
+                // Field order must match the indexes used in commit
+                Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+                List<Object> fields = new ArrayList<>();
+                fields.add(field.newInstance(String.class, "typeName"));
+                fields.add(field.newInstance(String.class, "kind"));
+                fields.add(field.newInstance(int.class, "elements"));
+
+                Object factory = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                return new Support(factory);
+            }
+            catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                return null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotationType(String name) throws ClassNotFoundException {
+            return (Class<? extends Annotation>)Class.forName(name);
+        }
+    }
+
+    static TypeResolutionEvent begin(String typeName, String kind) {
+        Support support = Support.INSTANCE;
+        if (support == null) {
+            return DISABLED;
+        }
+
+        try {
+            Object event = support.newEvent.invoke(support.factory);
+            if (!(Boolean)support.isEnabled.invoke(event)) {
+                return DISABLED;
+            }
+            support.begin.invoke(event);
+            return new TypeResolutionEvent(event, typeName, kind);
+        }
+        catch (ReflectiveOperationException e) {
+            return DISABLED;
+        }
+    }
+
+    private final Object event;
+    private final String typeName;
+    private final String kind;
+
+    private TypeResolutionEvent(Object event, String typeName, String kind) {
+        this.event = event;
+        this.typeName = typeName;
+        this.kind = kind;
+    }
+
+    void commit(int elements) {
+        if (event == null) {
+            return;
+        }
+
+        Support support = Support.INSTANCE;
+        try {
+            support.end.invoke(event);
+            if ((Boolean)support.shouldCommit.invoke(event)) {
+                support.set.invoke(event, 0, typeName);
+                support.set.invoke(event, 1, kind);
+                support.set.invoke(event, 2, elements);
+                support.commit.invoke(event);
+            }
+        }
+        catch (ReflectiveOperationException e) {
+            // Recording is best effort, a failure here must not affect the conversion
+        }
+    }
+}
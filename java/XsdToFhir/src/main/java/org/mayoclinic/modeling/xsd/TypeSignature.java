@@ -0,0 +1,300 @@
+package org.mayoclinic.modeling.xsd;
+
+import org.apache.ws.commons.schema.*;
+
+import javax.xml.namespace.QName;
+import java.util.*;
+
+/**
+ * Canonical description of a schema type's content and the named types it refers to.
+ *
+ * Everything that is expanded into the type when it is imported (groups, attribute groups, referenced global elements
+ * and attributes, anonymous types, documentation) is part of the signature, named types are only referenced by name.
+ * Two types with the same signature import to the same definition apart from their names, so the signature tells
+ * whether a type changed between two reads of a schema, and the references tell which types depend on which.
+ */
+final class TypeSignature {
+    private final String text;
+    private final Set<QName> references;
+
+    private TypeSignature(String text, Set<QName> references) {
+        this.text = text;
+        this.references = references;
+    }
+
+    public static TypeSignature of(XmlSchemaType schemaType) {
+        Builder builder = new Builder();
+        builder.appendType(schemaType);
+        return new TypeSignature(builder.sb.toString(), Collections.unmodifiableSet(builder.references));
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // Named types used as the base, element, attribute, list item or union member type of the type
+    public Set<QName> getReferences() {
+        return references;
+    }
+
+    private static class Builder {
+        private final StringBuilder sb = new StringBuilder();
+        private final Set<QName> references = new LinkedHashSet<>();
+        // Global elements being expanded, an anonymous type may refer back to the element it belongs to
+        private final Set<XmlSchemaElement> expanding = Collections.newSetFromMap(new IdentityHashMap<XmlSchemaElement, Boolean>());
+
+        private void appendType(XmlSchemaType schemaType) {
+            if (schemaType instanceof XmlSchemaSimpleType) {
+                appendSimpleType((XmlSchemaSimpleType)schemaType);
+            }
+            else if (schemaType instanceof XmlSchemaComplexType) {
+                appendComplexType((XmlSchemaComplexType)schemaType);
+            }
+            else {
+                sb.append('?');
+            }
+        }
+
+        // A named type is referenced, an anonymous one is expanded in place
+        private void appendTypeUse(XmlSchemaType schemaType, QName schemaTypeName) {
+            if (schemaType != null && schemaType.isAnonymous()) {
+                appendType(schemaType);
+            }
+            else {
+                appendReference(schemaType != null ? schemaType.getQName() : schemaTypeName);
+            }
+        }
+
+        private void appendReference(QName name) {
+            if (name == null) {
+                sb.append('-');
+                return;
+            }
+
+            references.add(name);
+            sb.append('{').append(name.getNamespaceURI()).append('}').append(name.getLocalPart()).append(';');
+        }
+
+        private void appendText(String value) {
+            if (value == null) {
+                sb.append('-');
+                return;
+            }
+
+            // Length prefixed, so free text can't be mistaken for structure
+            sb.append(value.length()).append(':').append(value);
+        }
+
+        private void appendDocumentation(XmlSchemaAnnotation annotation) {
+            appendText(annotation != null ? DocumentationCache.extract(annotation) : null);
+        }
+
+        private void appendSimpleType(XmlSchemaSimpleType simpleType) {
+            sb.append("S(");
+            appendDocumentation(simpleType.getAnnotation());
+            XmlSchemaSimpleTypeContent content = simpleType.getContent();
+            if (content instanceof XmlSchemaSimpleTypeRestriction) {
+                XmlSchemaSimpleTypeRestriction restriction = (XmlSchemaSimpleTypeRestriction)content;
+                sb.append('R');
+                appendTypeUse(restriction.getBaseType(), restriction.getBaseTypeName());
+                appendFacets(restriction.getFacets());
+            }
+            else if (content instanceof XmlSchemaSimpleTypeList) {
+                XmlSchemaSimpleTypeList list = (XmlSchemaSimpleTypeList)content;
+                sb.append('L');
+                appendTypeUse(list.getItemType(), list.getItemTypeName());
+            }
+            else if (content instanceof XmlSchemaSimpleTypeUnion) {
+                XmlSchemaSimpleTypeUnion union = (XmlSchemaSimpleTypeUnion)content;
+                sb.append('U');
+                if (union.getMemberTypesQNames() != null) {
+                    for (QName memberTypeName : union.getMemberTypesQNames()) {
+                        appendReference(memberTypeName);
+                    }
+                }
+                for (XmlSchemaSimpleType memberType : union.getBaseTypes()) {
+                    appendTypeUse(memberType, null);
+                }
+            }
+            sb.append(')');
+        }
+
+        private void appendFacets(List<XmlSchemaFacet> facets) {
+            for (XmlSchemaFacet facet : facets) {
+                sb.append(facet.getClass().getSimpleName()).append('=');
+                appendText(facet.getValue() != null ? facet.getValue().toString() : null);
+                appendDocumentation(facet.getAnnotation());
+            }
+        }
+
+        private void appendComplexType(XmlSchemaComplexType complexType) {
+            sb.append("C(").append(complexType.isAbstract() ? 'a' : '-').append(complexType.isMixed() ? 'm' : '-');
+            appendDocumentation(complexType.getAnnotation());
+            if (complexType.getContentModel() != null) {
+                XmlSchemaContent content = complexType.getContentModel().getContent();
+                if (content instanceof XmlSchemaComplexContentRestriction) {
+                    XmlSchemaComplexContentRestriction restriction = (XmlSchemaComplexContentRestriction)content;
+                    sb.append("CR");
+                    appendReference(restriction.getBaseTypeName());
+                    appendAttributes(restriction.getAttributes());
+                    appendParticle(restriction.getParticle());
+                }
+                else if (content instanceof XmlSchemaComplexContentExtension) {
+                    XmlSchemaComplexContentExtension extension = (XmlSchemaComplexContentExtension)content;
+                    sb.append("CE");
+                    appendReference(extension.getBaseTypeName());
+                    appendAttributes(extension.getAttributes());
+                    appendParticle(extension.getParticle());
+                }
+                else if (content instanceof XmlSchemaSimpleContentRestriction) {
+                    XmlSchemaSimpleContentRestriction restriction = (XmlSchemaSimpleContentRestriction)content;
+                    sb.append("SR");
+                    appendReference(restriction.getBaseTypeName());
+                    appendFacets(restriction.getFacets());
+                    appendAttributes(restriction.getAttributes());
+                }
+                else if (content instanceof XmlSchemaSimpleContentExtension) {
+                    XmlSchemaSimpleContentExtension extension = (XmlSchemaSimpleContentExtension)content;
+                    sb.append("SE");
+                    appendReference(extension.getBaseTypeName());
+                    appendAttributes(extension.getAttributes());
+                }
+                else {
+                    sb.append('?');
+                }
+            }
+            else {
+                appendAttributes(complexType.getAttributes());
+                appendParticle(complexType.getParticle());
+            }
+            sb.append(')');
+        }
+
+        private void appendOccurs(XmlSchemaParticle particle) {
+            sb.append('[').append(particle.getMinOccurs()).append(',').append(particle.getMaxOccurs()).append(']');
+        }
+
+        private void appendParticle(XmlSchemaParticle particle) {
+            if (particle == null) {
+                sb.append('-');
+            }
+            else if (particle instanceof XmlSchemaElement) {
+                appendElement((XmlSchemaElement)particle);
+            }
+            else if (particle instanceof XmlSchemaSequence) {
+                sb.append("Q");
+                appendOccurs(particle);
+                sb.append('(');
+                for (XmlSchemaSequenceMember member : ((XmlSchemaSequence)particle).getItems()) {
+                    if (member instanceof XmlSchemaParticle) {
+                        appendParticle((XmlSchemaParticle)member);
+                    }
+                }
+                sb.append(')');
+            }
+            else if (particle instanceof XmlSchemaAll) {
+                sb.append("A");
+                appendOccurs(particle);
+                sb.append('(');
+                for (XmlSchemaAllMember member : ((XmlSchemaAll)particle).getItems()) {
+                    if (member instanceof XmlSchemaParticle) {
+                        appendParticle((XmlSchemaParticle)member);
+                    }
+                }
+                sb.append(')');
+            }
+            else if (particle instanceof XmlSchemaChoice) {
+                sb.append("H");
+                appendOccurs(particle);
+                sb.append('(');
+                for (XmlSchemaChoiceMember member : ((XmlSchemaChoice)particle).getItems()) {
+                    if (member instanceof XmlSchemaParticle) {
+                        appendParticle((XmlSchemaParticle)member);
+                    }
+                }
+                sb.append(')');
+            }
+            else if (particle instanceof XmlSchemaGroupRef) {
+                sb.append("G");
+                appendOccurs(particle);
+                sb.append('(');
+                appendParticle(((XmlSchemaGroupRef)particle).getParticle());
+                sb.append(')');
+            }
+            else {
+                sb.append('?');
+            }
+        }
+
+        private void appendElement(XmlSchemaElement element) {
+            sb.append("E");
+            appendOccurs(element);
+            if (element.isRef()) {
+                element = element.getRef().getTarget();
+                if (element == null || !expanding.add(element)) {
+                    // Unresolved, or an anonymous type of the element refers back to it
+                    sb.append('^');
+                    appendText(element != null ? element.getName() : null);
+                    return;
+                }
+                try {
+                    appendElementContent(element);
+                }
+                finally {
+                    expanding.remove(element);
+                }
+            }
+            else {
+                appendElementContent(element);
+            }
+        }
+
+        private void appendElementContent(XmlSchemaElement element) {
+            sb.append('(');
+            appendText(element.getName());
+            appendDocumentation(element.getAnnotation());
+            appendTypeUse(element.getSchemaType(), element.getSchemaTypeName());
+            sb.append(')');
+        }
+
+        private void appendAttributes(List<XmlSchemaAttributeOrGroupRef> attributes) {
+            for (XmlSchemaAttributeOrGroupRef attribute : attributes) {
+                if (attribute instanceof XmlSchemaAttribute) {
+                    appendAttribute((XmlSchemaAttribute)attribute);
+                }
+                else if (attribute instanceof XmlSchemaAttributeGroupRef) {
+                    appendAttributeGroup(((XmlSchemaAttributeGroupRef)attribute).getRef().getTarget());
+                }
+            }
+        }
+
+        private void appendAttributeGroup(XmlSchemaAttributeGroup attributeGroup) {
+            sb.append("AG(");
+            if (attributeGroup != null) {
+                for (XmlSchemaAttributeGroupMember member : attributeGroup.getAttributes()) {
+                    if (member instanceof XmlSchemaAttribute) {
+                        appendAttribute((XmlSchemaAttribute)member);
+                    }
+                    else if (member instanceof XmlSchemaAttributeGroupRef) {
+                        appendAttributeGroup(((XmlSchemaAttributeGroupRef)member).getRef().getTarget());
+                    }
+                    else if (member instanceof XmlSchemaAttributeGroup) {
+                        appendAttributeGroup((XmlSchemaAttributeGroup)member);
+                    }
+                }
+            }
+            sb.append(')');
+        }
+
+        private void appendAttribute(XmlSchemaAttribute attribute) {
+            sb.append("T(").append(attribute.getUse());
+            if (attribute.isRef() && attribute.getRef().getTarget() != null) {
+                attribute = attribute.getRef().getTarget();
+            }
+            appendText(attribute.getName());
+            appendDocumentation(attribute.getAnnotation());
+            appendTypeUse(attribute.getSchemaType(), attribute.getSchemaTypeName());
+            sb.append(')');
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.dstu2.resource.ValueSet;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
+import ca.uhn.fhir.model.dstu2.valueset.ConformanceResourceStatusEnum;
+import ca.uhn.fhir.model.dstu2.valueset.ContactPointSystemEnum;
+import org.apache.ws.commons.schema.XmlSchemaAnnotation;
+import org.apache.ws.commons.schema.XmlSchemaEnumerationFacet;
+import org.apache.ws.commons.schema.XmlSchemaFacet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+/**
+ * ValueSets for the enumerations of simple types, keyed by a hash of the code list (the codes in order and their
+ * documentation), so identical enumerations in any number of types and schemas share one ValueSet.
+ *
+ * The id and url of a ValueSet are made from the hash, which keeps them the same whichever type or schema the code
+ * list is found in first. Each ValueSet is built once per date, by the first import with that date that needs it: an
+ * import dated differently (e.g. a later conversion of a long-running process) gets a ValueSet of its own, which
+ * replaces the cached one. Share one cache between the imports of a run by setting it on their options; the cache
+ * keeps every code list it has seen, so long-running processes should give each conversion its own. Safe to use from
+ * several threads.
+ */
+public class ValueSetCache {
+    private static final String URL_PREFIX = "urn:xsd-to-fhir:enumeration:";
+    private static final String SYSTEM_PREFIX = "urn:xsd-to-fhir:codes:";
+    // Hex digits of the hash used in ids, enough to tell apart the enumerations of any set of schemas
+    private static final int ID_HASH_LENGTH = 16;
+
+    // A code of an enumeration with the documentation of its facet
+    private static final class Code {
+        private final String value;
+        private final String documentation;
+
+        private Code(String value, String documentation) {
+            this.value = value;
+            this.documentation = documentation;
+        }
+    }
+
+    private final ConcurrentMap<String, ValueSet> valueSets;
+
+    public ValueSetCache() {
+        this.valueSets = new ConcurrentHashMap<>();
+    }
+
+    public int size() {
+        return valueSets.size();
+    }
+
+    public Collection<ValueSet> values() {
+        return Collections.unmodifiableCollection(valueSets.values());
+    }
+
+    /*
+     * The ValueSet for the enumeration facets among the given facets, built with the given options and date if it's the
+     * first time the code list is seen with that date and publisher, or null if there are no enumeration facets.
+     */
+    ValueSet resolve(List<XmlSchemaFacet> facets, final XsdImportOptions options, final DateTimeDt date, ConversionMetrics metrics) {
+        final List<Code> codes = new ArrayList<>();
+        for (XmlSchemaFacet facet : facets) {
+            if (facet instanceof XmlSchemaEnumerationFacet && facet.getValue() != null) {
+                codes.add(new Code(facet.getValue().toString(), getDocumentation(facet.getAnnotation())));
+            }
+        }
+        if (codes.isEmpty()) {
+            return null;
+        }
+
+        final String hash = hash(codes);
+        ValueSet valueSet = valueSets.get(hash);
+        if (valueSet != null && matches(valueSet, options, date)) {
+            metrics.valueSetShared();
+            return valueSet;
+        }
+
+        final boolean[] created = new boolean[1];
+        valueSet = valueSets.compute(hash, new BiFunction<String, ValueSet, ValueSet>() {
+            @Override
+            public ValueSet apply(String key, ValueSet cached) {
+                if (cached != null && matches(cached, options, date)) {
+                    return cached;
+                }
+                created[0] = true;
+                return createValueSet(hash, codes, options, date);
+            }
+        });
+        if (created[0]) {
+            metrics.valueSetCreated();
+        }
+        else {
+            metrics.valueSetShared();
+        }
+        return valueSet;
+    }
+
+    private static boolean matches(ValueSet valueSet, XsdImportOptions options, DateTimeDt date) {
+        return valueSet.getDateElement().getValueAsString().equals(date.getValueAsString())
+                && Objects.equals(valueSet.getPublisher(), options.getPublisher());
+    }
+
+    private static String getDocumentation(XmlSchemaAnnotation annotation) {
+        return annotation != null ? DocumentationCache.extract(annotation) : null;
+    }
+
+    private static ValueSet createValueSet(String hash, List<Code> codes, XsdImportOptions options, DateTimeDt date) {
+        String shortHash = hash.substring(0, ID_HASH_LENGTH);
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("enumeration-" + shortHash);
+        valueSet.setUrl(URL_PREFIX + shortHash);
+        valueSet.setName(getName(codes));
+        valueSet.setStatus(ConformanceResourceStatusEnum.DRAFT);
+        valueSet.setPublisher(options.getPublisher());
+        valueSet.addContact().setName(options.getPublisherContact()).addTelecom().setSystem(ContactPointSystemEnum.URL).setValue(options.getPublisherUrl());
+        valueSet.setDate(date);
+        valueSet.setDescription(String.format("Codes of an enumeration with %d value(s).", codes.size()));
+
+        // The codes are defined by the schema, the ValueSet defines them as its own code system
+        ValueSet.CodeSystem codeSystem = valueSet.getCodeSystem();
+        codeSystem.setSystem(SYSTEM_PREFIX + shortHash);
+        codeSystem.setCaseSensitive(true);
+        for (Code code : codes) {
+            ValueSet.CodeSystemConcept concept = codeSystem.addConcept();
+            concept.setCode(code.value);
+            if (code.documentation != null && !code.documentation.isEmpty()) {
+                concept.setDefinition(code.documentation);
+            }
+        }
+        return valueSet;
+    }
+
+    // The codes themselves, shortened for long enumerations
+    private static String getName(List<Code> codes) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < codes.size() && i < 5; i++) {
+            sb.append(i > 0 ? " | " : "").append(codes.get(i).value);
+        }
+        if (codes.size() > 5) {
+            sb.append(" | ...");
+        }
+        return sb.toString();
+    }
+
+    // Length prefixed, so no code list can be mistaken for another
+    private static String hash(List<Code> codes) {
+        StringBuilder sb = new StringBuilder();
+        for (Code code : codes) {
+            sb.append(code.value.length()).append(':').append(code.value);
+            if (code.documentation != null) {
+                sb.append(code.documentation.length()).append(':').append(code.documentation);
+            }
+            else {
+                sb.append('-');
+            }
+        }
+        return ContentHash.toHex(ContentHash.of(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+}
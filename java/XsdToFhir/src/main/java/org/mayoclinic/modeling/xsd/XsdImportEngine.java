@@ -0,0 +1,136 @@
+package org.mayoclinic.modeling.xsd;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import org.apache.ws.commons.schema.XmlSchema;
+
+import javax.xml.namespace.QName;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Everything an import needs that doesn't depend on the schema being imported: the FHIR base types, a copy of the
+ * options, the built-in type table and, with a parallelism above 1, the pool the types are generated on.
+ *
+ * An engine is set up once and can then import any number of schemas, from any number of threads at the same time.
+ * Each import is a session of its own (an {@link XsdImporter}) holding the state of that conversion only, so sessions
+ * don't see each other's types, definitions or ValueSets (unless the options share a ValueSet cache). Sessions
+ * running at the same time share the generation pool. Close the engine once it is no longer used to stop the pool.
+ */
+public class XsdImportEngine implements Closeable {
+    // FHIR version the definitions are generated for, 1.3.0 (current trunk version)
+    static final String FHIR_VERSION = "1.3.0";
+
+    private final FhirTypeRegistry fhirTypes;
+    private final XsdImportOptions options;
+    private final BuiltInTypeTable builtInTypes;
+    private final FhirContextProvider contextProvider;
+    private final ConversionMetrics metrics;
+    private final String fhirVersion;
+    private final ForkJoinPool pool;
+
+    public XsdImportEngine(FhirTypeRegistry fhirTypes, XsdImportOptions options) {
+        this(fhirTypes, FhirContextProvider.getInstance(), options);
+    }
+
+    // Definitions are parsed and encoded (e.g. to the spill file) with the given FHIR context
+    public XsdImportEngine(FhirTypeRegistry fhirTypes, FhirContextProvider contextProvider, XsdImportOptions options) {
+        if (fhirTypes == null) {
+            throw new IllegalArgumentException("fhirTypes is null");
+        }
+        if (contextProvider == null) {
+            throw new IllegalArgumentException("contextProvider is null");
+        }
+
+        this.fhirTypes = fhirTypes;
+        // Copied, so changes the caller makes later don't reach sessions that are running
+        this.options = new XsdImportOptions(options);
+        this.builtInTypes = BuiltInTypeTable.withOverrides(this.options.getBuiltInTypeMappings());
+        this.contextProvider = contextProvider;
+        // Counters are always kept, they are only reported when the caller passes in its own metrics
+        this.metrics = this.options.getMetrics() != null ? this.options.getMetrics() : new ConversionMetrics();
+        this.fhirVersion = FHIR_VERSION;
+        this.pool = this.options.getParallelism() > 1 ? new ForkJoinPool(this.options.getParallelism()) : null;
+    }
+
+    /**
+     * Imports the schema and returns the session, which holds all of its definitions (see
+     * {@link XsdImporter#getDefinitions}).
+     */
+    public XsdImporter importSchema(XmlSchema schema, String modelName) {
+        return new XsdImporter(this, schema, modelName, null, null, null);
+    }
+
+    /**
+     * Imports the schema, handing each definition and ValueSet to the sink as soon as it is complete (see
+     * {@link XsdImporter#fromSchema(XmlSchema, String, FhirTypeRegistry, XsdImportOptions, Consumer)}).
+     */
+    public XsdImporter importSchema(XmlSchema schema, String modelName, Consumer<IResource> sink) {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink is null");
+        }
+
+        return new XsdImporter(this, schema, modelName, sink, null, null);
+    }
+
+    /*
+     * Imports only the named types (and types they need that are not in the seed), every type in the seed resolves to
+     * its seeded definition without being generated or handed to the sink again. Returns what each of the named types
+     * resolved to. Used to regenerate the types affected by a change to the schema.
+     */
+    Map<QName, StructureDefinition> importTypes(XmlSchema schema, String modelName, Consumer<IResource> sink,
+                                                Map<QName, StructureDefinition> seed, Collection<QName> typeNames) {
+        try (XsdImporter importer = new XsdImporter(this, schema, modelName, sink, seed, typeNames)) {
+            Map<QName, StructureDefinition> resolved = new LinkedHashMap<>();
+            for (QName typeName : typeNames) {
+                resolved.put(typeName, importer.getResolvedDefinition(typeName));
+            }
+            return resolved;
+        }
+    }
+
+    public FhirTypeRegistry getFhirTypes() {
+        return fhirTypes;
+    }
+
+    // A copy, the engine's own options can't be changed
+    public XsdImportOptions getOptions() {
+        return new XsdImportOptions(options);
+    }
+
+    XsdImportOptions getSharedOptions() {
+        return options;
+    }
+
+    BuiltInTypeTable getBuiltInTypes() {
+        return builtInTypes;
+    }
+
+    FhirContextProvider getContextProvider() {
+        return contextProvider;
+    }
+
+    ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    String getFhirVersion() {
+        return fhirVersion;
+    }
+
+    // Null when sessions generate on the calling thread
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
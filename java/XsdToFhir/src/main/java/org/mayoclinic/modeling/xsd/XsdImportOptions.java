@@ -1,5 +1,11 @@
 package org.mayoclinic.modeling.xsd;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Created by Bryn on 2/5/2016.
  */
@@ -11,6 +17,41 @@ public class XsdImportOptions {
         publisher = "Generated by Xsd-to-FHIR";
         publisherContact = "Visit the Github repository for more information";
         publisherUrl = "https://github.com/cts2/CTS2-to-FHIR";
+        // By default, generate on the calling thread
+        parallelism = 1;
+        metrics = null;
+        // By default, every namespace is imported into the model being imported
+        namespaceModels = new LinkedHashMap<>();
+        deferDocumentation = false;
+        // By default, every definition stays in memory
+        memoryBudget = 0;
+        spillDirectory = null;
+        expandSnapshots = false;
+        // By default, every import builds its own ValueSets
+        valueSets = null;
+        // By default, definitions are dated when they are generated
+        date = null;
+        // By default, built-in types map as listed in BuiltInTypeTable
+        builtInTypeMappings = new LinkedHashMap<>();
+    }
+
+    // Copy of the options, later changes to either one don't affect the other
+    public XsdImportOptions(XsdImportOptions other) {
+        generateSimpleTypeRestrictions = other.generateSimpleTypeRestrictions;
+        generateEmptyComplexTypes = other.generateEmptyComplexTypes;
+        publisher = other.publisher;
+        publisherContact = other.publisherContact;
+        publisherUrl = other.publisherUrl;
+        parallelism = other.parallelism;
+        metrics = other.metrics;
+        namespaceModels = new LinkedHashMap<>(other.namespaceModels);
+        deferDocumentation = other.deferDocumentation;
+        memoryBudget = other.memoryBudget;
+        spillDirectory = other.spillDirectory;
+        expandSnapshots = other.expandSnapshots;
+        valueSets = other.valueSets;
+        date = other.date != null ? new Date(other.date.getTime()) : null;
+        builtInTypeMappings = new LinkedHashMap<>(other.builtInTypeMappings);
     }
 
     private boolean generateSimpleTypeRestrictions;
@@ -36,7 +77,8 @@ public class XsdImportOptions {
         return publisher;
     }
 
-    private void setPublisher(String value) {
+    // Publisher of the generated definitions and ValueSets, also the author of a package
+    public void setPublisher(String value) {
         publisher = value;
     }
 
@@ -45,7 +87,8 @@ public class XsdImportOptions {
         return publisherContact;
     }
 
-    private void setPublisherContact(String value) {
+    // Name of the publisher's contact
+    public void setPublisherContact(String value) {
         publisherContact = value;
     }
 
@@ -54,7 +97,130 @@ public class XsdImportOptions {
         return publisherUrl;
     }
 
-    private void setPublisherUrl(String value) {
+    // Url the publisher's contact is reached at
+    public void setPublisherUrl(String value) {
         publisherUrl = value;
     }
+
+    private int parallelism;
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // Number of threads used to generate independent types at the same time
+    public void setParallelism(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        parallelism = value;
+    }
+
+    private ConversionMetrics metrics;
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Counters for the import are added to the given metrics (may be null)
+    public void setMetrics(ConversionMetrics value) {
+        metrics = value;
+    }
+
+    private Map<String, String> namespaceModels;
+    public Map<String, String> getNamespaceModels() {
+        return Collections.unmodifiableMap(namespaceModels);
+    }
+
+    // Imports the types of the namespace into the given model (an empty name leaves them unqualified)
+    public void setNamespaceModel(String namespace, String modelName) {
+        if (namespace == null) {
+            throw new IllegalArgumentException("namespace is null");
+        }
+        if (modelName == null) {
+            namespaceModels.remove(namespace);
+        }
+        else {
+            namespaceModels.put(namespace, modelName);
+        }
+    }
+
+    private boolean deferDocumentation;
+    public boolean getDeferDocumentation() {
+        return deferDocumentation;
+    }
+
+    // Leaves element documentation in the schema until the definition is serialized instead of copying it during generation
+    public void setDeferDocumentation(boolean value) {
+        deferDocumentation = value;
+    }
+
+    private long memoryBudget;
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    // Estimated bytes of returned definitions kept in memory, the rest goes to a spill file (0 keeps them all)
+    public void setMemoryBudget(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("memoryBudget can't be negative");
+        }
+        memoryBudget = value;
+    }
+
+    private File spillDirectory;
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    // Directory of the spill file, null for the temporary directory
+    public void setSpillDirectory(File value) {
+        spillDirectory = value;
+    }
+
+    private boolean expandSnapshots;
+    public boolean getExpandSnapshots() {
+        return expandSnapshots;
+    }
+
+    // Snapshots include the elements inherited from base types, with a differential holding the type's own elements
+    public void setExpandSnapshots(boolean value) {
+        expandSnapshots = value;
+    }
+
+    private ValueSetCache valueSets;
+    public ValueSetCache getValueSets() {
+        return valueSets;
+    }
+
+    // ValueSets for enumerations are shared with every import using the same cache (may be null)
+    public void setValueSets(ValueSetCache value) {
+        valueSets = value;
+    }
+
+    private Date date;
+    public Date getDate() {
+        return date;
+    }
+
+    // Fixed date of every generated definition and ValueSet, so output only changes when the schema does (may be null)
+    public void setDate(Date value) {
+        date = value;
+    }
+
+    private Map<String, String> builtInTypeMappings;
+    public Map<String, String> getBuiltInTypeMappings() {
+        return Collections.unmodifiableMap(builtInTypeMappings);
+    }
+
+    // Maps the built-in XML Schema type (a local name, e.g. token) and the built-in types derived from it to the FHIR type
+    public void setBuiltInTypeMapping(String xsdTypeName, String fhirTypeName) {
+        if (xsdTypeName == null || !BuiltInTypeTable.isBuiltInType(xsdTypeName)) {
+            throw new IllegalArgumentException(String.format("%s is not a built-in XML Schema type.", xsdTypeName));
+        }
+        if (fhirTypeName == null) {
+            builtInTypeMappings.remove(xsdTypeName);
+        }
+        else {
+            builtInTypeMappings.put(xsdTypeName, fhirTypeName);
+        }
+    }
 }
@@ -1,136 +1,383 @@
 package org.mayoclinic.modeling.xsd;
 
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
 import ca.uhn.fhir.model.dstu2.composite.ElementDefinitionDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
 import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import ca.uhn.fhir.model.dstu2.resource.ValueSet;
+import ca.uhn.fhir.model.dstu2.valueset.BindingStrengthEnum;
 import ca.uhn.fhir.model.dstu2.valueset.ConformanceResourceStatusEnum;
 import ca.uhn.fhir.model.dstu2.valueset.ContactPointSystemEnum;
 import ca.uhn.fhir.model.dstu2.valueset.StructureDefinitionKindEnum;
 import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.MarkdownDt;
 import org.apache.ws.commons.schema.*;
-import org.w3c.dom.NodeList;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Created by Bryn on 12/1/2015.
+ *
+ * One import of a schema (a session of an {@link XsdImportEngine}), the whole import runs in the constructor. The state
+ * held here belongs to this import only, everything that can be shared between imports comes from the engine.
+ *
+ * With a memory budget the returned definitions may partly live in a spill file, close the importer once they are no
+ * longer needed to delete it.
  */
-public class XsdImporter {
+public class XsdImporter implements Closeable {
     private final XmlSchema schema;
-    private final Map<String, StructureDefinition> definitions;
-    private final Map<String, StructureDefinition> fhirDefinitions;
-    private final Map<String, StructureDefinition> xsdTypeMap;
-    private final Map<String, String> namespaces;
+    private final DefinitionStore definitions;
+    private final FhirTypeRegistry fhirTypes;
+    private final BuiltInTypeTable builtInTypes;
+    private final SymbolTable symbols;
     private final String modelName;
     private final XsdImportOptions options;
     private final String fhirVersion;
+    private final Consumer<IResource> sink;
+    private final Set<String> emitted;
+    private final Set<String> created;
+    private final ConcurrentMap<String, TypeSlot> slots;
+    private final ForkJoinPool pool;
+    // Work of this import queued on the shared pool and not finished yet, waited on (and notified) under its own lock
+    private final AtomicInteger outstandingWork;
+    private final Queue<Runnable> pendingWork;
+    private final AtomicReference<Throwable> failure;
+    private final ConversionMetrics metrics;
+    private final DocumentationCache documentation;
+    private final ConcurrentMap<QName, Expansion> expansions;
+    private final TypeDependencyGraph graph;
+    private final AnonymousTypeTable anonymousTypes;
+    private final ValueSetCache valueSets;
+    // Every ValueSet of the import carries the same date, taken when the import starts
+    private final DateTimeDt valueSetDate;
+    private final ConcurrentMap<QName, ValueSetBinding> valueSetBindings;
+    private final ConcurrentMap<String, ValueSet> usedValueSets;
+
+    // Memo entry for a named schema type, resolved once under the slot's lock
+    private static class TypeSlot {
+        private volatile StructureDefinition definition;
+        private volatile boolean resolved;
+
+        private void resolve(StructureDefinition definition) {
+            this.definition = definition;
+            this.resolved = true;
+        }
+    }
+
+    // Memo entry for the ValueSet the values of a simple type are bound to, if any
+    private static class ValueSetBinding {
+        private final ValueSet valueSet;
+
+        private ValueSetBinding(ValueSet valueSet) {
+            this.valueSet = valueSet;
+        }
+    }
+
+    /*
+     * The elements of a complex type with its base types' elements expanded, paths relative to the type's root
+     * (e.g. changeNotes). Inherited elements come first, the list is shared with the base type's expansion up to there.
+     */
+    private static class Expansion {
+        private final List<ElementDefinitionDt> elements;
+        // Path of each element in the type that declares it
+        private final List<String> declaredPaths;
+        private final int inheritedCount;
+
+        private Expansion(List<ElementDefinitionDt> elements, List<String> declaredPaths, int inheritedCount) {
+            this.elements = elements;
+            this.declaredPaths = declaredPaths;
+            this.inheritedCount = inheritedCount;
+        }
+    }
 
     public static Iterable<StructureDefinition> fromSchema(XmlSchema schema, String modelName, List<StructureDefinition> fhirTypes, XsdImportOptions options) {
-        XsdImporter importer = new XsdImporter(schema, modelName, fhirTypes, options);
-        return importer.definitions.values();
+        return fromSchema(schema, modelName, FhirTypeRegistry.fromDefinitions(fhirTypes), options);
+    }
+
+    // The returned definitions can't be closed and are all held in memory, a memory budget takes an XsdImporter instead
+    public static Iterable<StructureDefinition> fromSchema(XmlSchema schema, String modelName, FhirTypeRegistry fhirTypes, XsdImportOptions options) {
+        if (options != null && options.getMemoryBudget() > 0) {
+            throw new IllegalArgumentException("fromSchema keeps every definition in memory, import with an XsdImporter (and close it) to use a memoryBudget");
+        }
+
+        try (XsdImporter importer = new XsdImporter(schema, modelName, fhirTypes, options)) {
+            List<StructureDefinition> definitions = new ArrayList<>();
+            for (StructureDefinition definition : importer.getDefinitions()) {
+                definitions.add(definition);
+            }
+            return definitions;
+        }
+    }
+
+    /**
+     * Imports the schema, handing each definition to the sink as soon as it is complete instead of returning them
+     * all at the end. Once a definition has been handed out the importer only keeps its name and url, so the sink
+     * decides how much of the model is held in memory. The ValueSets the definitions bind to are handed out too,
+     * each one once.
+     */
+    public static void fromSchema(XmlSchema schema, String modelName, FhirTypeRegistry fhirTypes, XsdImportOptions options, Consumer<IResource> sink) {
+        try (XsdImportEngine engine = new XsdImportEngine(fhirTypes, options)) {
+            engine.importSchema(schema, modelName, sink);
+        }
     }
 
     public XsdImporter(XmlSchema schema, String modelName, List<StructureDefinition> fhirTypes, XsdImportOptions options) {
-        String fhirVersion = "1.3.0"; // Default to 1.3.0 (current trunk version)
+        this(schema, modelName, FhirTypeRegistry.fromDefinitions(fhirTypes), options);
+    }
+
+    // Imports with an engine of its own, which is closed again once the import is done
+    public XsdImporter(XmlSchema schema, String modelName, FhirTypeRegistry fhirTypes, XsdImportOptions options) {
+        this(new XsdImportEngine(fhirTypes, options), true, schema, modelName, null, null, null);
+    }
+
+    XsdImporter(XsdImportEngine engine, XmlSchema schema, String modelName, Consumer<IResource> sink,
+                Map<QName, StructureDefinition> seed, Collection<QName> typeNames) {
+        this(engine, false, schema, modelName, sink, seed, typeNames);
+    }
+
+    private XsdImporter(XsdImportEngine engine, boolean ownsEngine, XmlSchema schema, String modelName, Consumer<IResource> sink,
+                        Map<QName, StructureDefinition> seed, Collection<QName> typeNames) {
         this.schema = schema;
-        this.options = options;
-        this.fhirDefinitions = new HashMap<>();
-        for (StructureDefinition sd : fhirTypes) {
-            fhirDefinitions.put(sd.getName(), sd);
-            if (fhirVersion == null) {
-                fhirVersion = sd.getFhirVersion();
+        this.options = engine.getSharedOptions();
+        // Base types are only looked up (and loaded) when a schema type maps to them
+        this.fhirTypes = engine.getFhirTypes();
+        this.fhirVersion = engine.getFhirVersion();
+        this.builtInTypes = engine.getBuiltInTypes();
+
+        this.modelName = modelName;
+        this.symbols = new SymbolTable(this.modelName, options.getNamespaceModels());
+        this.sink = sink;
+        this.emitted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.slots = new ConcurrentHashMap<>();
+        this.pool = engine.getPool();
+        this.outstandingWork = new AtomicInteger();
+        this.pendingWork = new ArrayDeque<>();
+        this.failure = new AtomicReference<>();
+        this.metrics = engine.getMetrics();
+        this.documentation = new DocumentationCache();
+        this.expansions = new ConcurrentHashMap<>();
+        this.definitions = new DefinitionStore(engine.getContextProvider(), options.getMemoryBudget(), options.getSpillDirectory(), metrics);
+        this.graph = TypeDependencyGraph.build(schema);
+        this.anonymousTypes = AnonymousTypeTable.build(schema, graph);
+        this.valueSets = options.getValueSets() != null ? options.getValueSets() : new ValueSetCache();
+        this.valueSetDate = createDate(options);
+        this.valueSetBindings = new ConcurrentHashMap<>();
+        this.usedValueSets = new ConcurrentHashMap<>();
+
+        if (seed != null) {
+            for (Map.Entry<QName, StructureDefinition> entry : seed.entrySet()) {
+                getSlot(symbols.get(entry.getKey()).getQualifiedName()).resolve(entry.getValue());
+                // Seeded definitions were handed out when they were generated, a type resolving to one doesn't emit it
+                created.add(entry.getValue().getUrl());
             }
         }
 
-        this.fhirVersion = fhirVersion;
-        this.xsdTypeMap = new HashMap<>();
-        loadXsdTypeMap();
+        try {
+            this.generate(typeNames);
+        }
+        catch (RuntimeException | Error e) {
+            // Nobody gets to close a session that failed, its spill file goes now
+            definitions.close();
+            throw e;
+        }
+        finally {
+            if (ownsEngine) {
+                engine.close();
+            }
+        }
+        definitions.finish();
+    }
 
+    // The definitions of the import, empty when they were handed to a sink
+    public Iterable<StructureDefinition> getDefinitions() {
+        return definitions.values();
+    }
 
-        this.definitions = new HashMap<>();
-        this.namespaces = new HashMap<>();
-        this.modelName = modelName;
-        this.namespaces.put(this.schema.getTargetNamespace(), this.modelName);
+    // Deletes the spill file, if any; the definitions can't be iterated after this
+    @Override
+    public void close() {
+        definitions.close();
+    }
 
-        this.generate();
+    // What the type resolved to, or null if it wasn't imported
+    StructureDefinition getResolvedDefinition(QName typeName) {
+        TypeSlot slot = slots.get(symbols.get(typeName).getQualifiedName());
+        return slot != null ? slot.definition : null;
     }
 
-    private void loadXsdTypeMap() {
-        xsdTypeMap.put("anyType", fhirDefinitions.get("Element")); // Not sure this is right...
-        xsdTypeMap.put("anySimpleType", fhirDefinitions.get("Element"));
-        xsdTypeMap.put("duration", fhirDefinitions.get("Duration"));
-        xsdTypeMap.put("dateTime", fhirDefinitions.get("dateTime"));
-        xsdTypeMap.put("gYear", fhirDefinitions.get("date"));
-        xsdTypeMap.put("gYearMonth", fhirDefinitions.get("date"));
-        xsdTypeMap.put("date", fhirDefinitions.get("date"));
-        xsdTypeMap.put("time", fhirDefinitions.get("time"));
-        xsdTypeMap.put("decimal", fhirDefinitions.get("decimal"));
-        xsdTypeMap.put("double", fhirDefinitions.get("decimal"));
-        xsdTypeMap.put("boolean", fhirDefinitions.get("boolean"));
-        xsdTypeMap.put("base64Binary", fhirDefinitions.get("base64Binary"));
-        xsdTypeMap.put("string", fhirDefinitions.get("string"));
-        xsdTypeMap.put("anyURI", fhirDefinitions.get("uri"));
-        xsdTypeMap.put("NCName", fhirDefinitions.get("string")); // Should this be code?
-        xsdTypeMap.put("nonNegativeInteger", fhirDefinitions.get("unsignedInt"));
-        xsdTypeMap.put("positiveInteger", fhirDefinitions.get("positiveInt"));
+    // The ValueSets the imported definitions bind to
+    public Collection<ValueSet> getValueSets() {
+        return Collections.unmodifiableCollection(usedValueSets.values());
     }
 
-    private void generate() {
-        for (XmlSchemaType schemaType : schema.getSchemaTypes().values()) {
-            resolveDefinition(schemaType);
+    /*
+     * Without a list of types every type in the schema's dependency graph is generated level by level, so the types
+     * generated on one level find everything they depend on already resolved. The components of a level are
+     * independent and run in parallel, the types of a component (which refer to each other) run as one unit.
+     */
+    private void generate(Collection<QName> typeNames) {
+        if (typeNames == null) {
+            for (List<List<QName>> level : graph.getLevels()) {
+                for (final List<QName> component : level) {
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (QName typeName : component) {
+                                resolveDefinition(graph.getSchemaType(typeName));
+                            }
+                        }
+                    });
+                }
+                awaitGeneration();
+            }
+        }
+        else {
+            for (final QName typeName : typeNames) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        resolveDefinition(typeName);
+                    }
+                });
+            }
+            awaitGeneration();
         }
     }
 
-    private String getQualifiedTypeName(QName schemaTypeName, Map<String, String> namespaces) {
-        if (schemaTypeName == null) {
-            throw new IllegalArgumentException("schemaTypeName is null");
+    // Queues work on the generation pool, or on the pending queue when generating on the calling thread
+    private void submit(final Runnable work) {
+        if (pool == null) {
+            pendingWork.add(work);
+            return;
         }
 
-        String namespaceName = namespaces.get(schemaTypeName.getNamespaceURI());
-        if (namespaceName == null) {
-            // TODO: Import different namespaces into different models? Support mapping here?
-            namespaceName = this.modelName;
-            namespaces.put(schemaTypeName.getNamespaceURI(), namespaceName);
-//            namespaceName = schemaTypeName.getPrefix(); // Doesn't always work, but should be okay for a fallback position...
-//            if (namespaceName != null && !namespaceName.isEmpty()) {
-//                namespaces.put(schemaTypeName.getNamespaceURI(), namespaceName);
-//            }
+        outstandingWork.incrementAndGet();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        work.run();
+                    }
+                }
+                catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                }
+                finally {
+                    if (outstandingWork.decrementAndGet() == 0) {
+                        synchronized (outstandingWork) {
+                            outstandingWork.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs until all submitted work, and the work it submitted in turn, is done
+    private void awaitGeneration() {
+        if (pool == null) {
+            Runnable work;
+            while ((work = pendingWork.poll()) != null) {
+                work.run();
+            }
+            return;
         }
 
-        if (namespaceName != null && !namespaceName.isEmpty()) {
-            return namespaceName + '.' + schemaTypeName.getLocalPart().replace('-', '_');
+        // The pool is shared with other imports, only this import's own work is waited for
+        boolean interrupted = false;
+        synchronized (outstandingWork) {
+            while (outstandingWork.get() > 0) {
+                try {
+                    outstandingWork.wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
 
-        return schemaTypeName.getLocalPart().replace('-', '_');
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        }
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
     }
 
-    private String unqualify(String name) {
-        int qualifierIndex = name.indexOf('.');
-        if (qualifierIndex >= 0) {
-            return name.substring(qualifierIndex + 1);
+    private TypeSlot getSlot(String qualifiedTypeName) {
+        TypeSlot slot = slots.get(qualifiedTypeName);
+        if (slot == null) {
+            TypeSlot newSlot = new TypeSlot();
+            slot = slots.putIfAbsent(qualifiedTypeName, newSlot);
+            if (slot == null) {
+                slot = newSlot;
+            }
         }
-
-        return name;
+        return slot;
     }
 
-    private String getDocumentation(XmlSchemaAnnotation annotation) {
-        if (annotation != null) {
-            for (XmlSchemaAnnotationItem i : annotation.getItems()) {
-                if (i instanceof XmlSchemaDocumentation) {
-                    StringBuilder sb = new StringBuilder();
-                    NodeList nl = ((XmlSchemaDocumentation)i).getMarkup();
-                    for (int idx = 0; idx < nl.getLength(); idx++) {
-                        sb.append(nl.item(idx).getTextContent());
-                    }
-                    return sb.toString();
-                }
+    // Called once the definition for the type is final
+    private void complete(TypeSlot slot, String qualifiedTypeName, StructureDefinition definition) {
+        metrics.definitionGenerated(definition.getSnapshot().getElement().size());
+        if (sink == null) {
+            if (!definitions.addGenerated(qualifiedTypeName, definition)) {
+                // Spilled, references only need the name and url
+                slot.definition = createStub(definition);
             }
         }
+        else {
+            emit(slot, definition);
+        }
+    }
+
+    private void emit(TypeSlot slot, StructureDefinition definition) {
+        // Several types can resolve to the same (base) definition, it is only handed out once
+        if (emitted.add(definition.getUrl())) {
+            sink.accept(definition);
+        }
+
+        // References only need the name and url, the full definition now belongs to the sink
+        slot.definition = createStub(definition);
+    }
+
+    private StructureDefinition createStub(StructureDefinition definition) {
+        StructureDefinition stub = new StructureDefinition();
+        stub.setId(definition.getId());
+        stub.setName(definition.getName());
+        stub.setUrl(definition.getUrl());
+        return stub;
+    }
+
+    private String getDocumentation(XmlSchemaAnnotation annotation) {
+        return documentation.get(annotation).getText();
+    }
 
-        return "TODO: Description";
+    private void setDocumentation(ElementDefinitionDt elementDefinition, XmlSchemaAnnotation annotation) {
+        DocumentationCache.Documentation elementDocumentation = documentation.get(annotation);
+        if (options.getDeferDocumentation()) {
+            elementDefinition.setShort(new DocumentationCache.DeferredShortDt(elementDocumentation));
+            elementDefinition.setDefinition(new DocumentationCache.DeferredMarkdownDt(elementDocumentation));
+        }
+        else {
+            elementDefinition.setShort(elementDocumentation.getShort());
+            elementDefinition.setDefinition(buildMarkdown(elementDocumentation.getText()));
+        }
     }
 
     private StructureDefinition resolveDefinition(QName schemaTypeName) {
@@ -139,8 +386,10 @@ public class XsdImporter {
         }
 
         // TODO: Better story for mapping in general...
-        if (schemaTypeName.getNamespaceURI().equals("http://www.w3.org/2001/XMLSchema")) {
-            StructureDefinition sd = xsdTypeMap.get(schemaTypeName.getLocalPart());
+        if (schemaTypeName.getNamespaceURI().equals(XMLConstants.W3C_XML_SCHEMA_NS_URI)) {
+            String fhirTypeName = builtInTypes.getFhirTypeName(schemaTypeName.getLocalPart());
+            StructureDefinition sd = fhirTypeName != null ? fhirTypes.get(fhirTypeName) : null;
+            metrics.builtInTypeLookup();
             if (sd != null) {
                 return sd;
             }
@@ -150,7 +399,7 @@ public class XsdImporter {
         }
 
 
-        XmlSchemaType schemaType = schema.getTypeByName(schemaTypeName);
+        XmlSchemaType schemaType = findSchemaType(schemaTypeName);
         if (schemaType == null) {
             // TODO: Mapping to existing definitions? (FHIR base types...)
             throw new IllegalArgumentException(String.format("Could not resolve type name %s.", schemaTypeName.toString()));
@@ -159,7 +408,26 @@ public class XsdImporter {
         return resolveDefinition(schemaType);
     }
 
+    private XmlSchemaType findSchemaType(QName schemaTypeName) {
+        XmlSchemaType schemaType = schema.getTypeByName(schemaTypeName);
+        if (schemaType == null && schema.getParent() != null) {
+            // Types from other schemas read into the same collection (e.g. in a batch run)
+            schemaType = schema.getParent().getTypeByQName(schemaTypeName);
+        }
+        return schemaType;
+    }
+
+    // Anonymous types are imported under the name of their structure
+    private QName getTypeName(XmlSchemaType schemaType) {
+        return schemaType.isAnonymous() ? anonymousTypes.getName(schemaType) : schemaType.getQName();
+    }
+
     private StructureDefinition resolveDefinition(XmlSchemaType schemaType) {
+        // Elements and attributes of a built-in type find it as a schema type too, it maps to a FHIR type
+        if (!schemaType.isAnonymous() && XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(schemaType.getQName().getNamespaceURI())) {
+            return resolveDefinition(schemaType.getQName());
+        }
+
         if (schemaType instanceof XmlSchemaSimpleType) {
             return resolveSimpleType((XmlSchemaSimpleType)schemaType);
         }
@@ -171,17 +439,17 @@ public class XsdImporter {
         return null;
     }
 
-    private StructureDefinition createStructureDefinition(XmlSchemaType schemaType) {
-        String qualifiedTypeName = getQualifiedTypeName(schemaType.getQName(), namespaces);
+    private StructureDefinition createStructureDefinition(XmlSchemaType schemaType, SymbolTable.Symbol symbol) {
         StructureDefinition definition = new StructureDefinition();
-        definition.setId(unqualify(qualifiedTypeName));
-        definition.setUrl(schemaType.getQName().toString());
-        definition.setName(unqualify(qualifiedTypeName));
-        definition.setDisplay(qualifiedTypeName);
+        definition.setId(symbol.getUnqualifiedName());
+        definition.setUrl(getTypeName(schemaType).toString());
+        created.add(definition.getUrl());
+        definition.setName(symbol.getUnqualifiedName());
+        definition.setDisplay(symbol.getQualifiedName());
         definition.setStatus(ConformanceResourceStatusEnum.DRAFT);
         definition.setPublisher(options.getPublisher());
         definition.addContact().setName(options.getPublisherContact()).addTelecom().setSystem(ContactPointSystemEnum.URL).setValue(options.getPublisherUrl());
-        definition.setDate(DateTimeDt.withCurrentTime());
+        definition.setDate(createDate(options));
         definition.setAbstract(false);
 
         // Get the documentation annotation
@@ -194,190 +462,518 @@ public class XsdImporter {
     }
 
     private StructureDefinition resolveSimpleType(XmlSchemaSimpleType schemaSimpleType) {
-        if (schemaSimpleType.isAnonymous()) {
-            return null;
+        SymbolTable.Symbol symbol = symbols.get(getTypeName(schemaSimpleType));
+        TypeSlot slot = getSlot(symbol.getQualifiedName());
+        if (!slot.resolved) {
+            synchronized (slot) {
+                if (!slot.resolved) {
+                    metrics.typeResolved();
+                    createSimpleType(slot, symbol, schemaSimpleType);
+                }
+                else {
+                    metrics.memoHit();
+                }
+            }
+        }
+        else {
+            metrics.memoHit();
         }
 
-        String qualifiedTypeName = getQualifiedTypeName(schemaSimpleType.getQName(), namespaces);
-        String unqualifiedTypeName = unqualify(qualifiedTypeName);
-        StructureDefinition definition = definitions.get(qualifiedTypeName);
-        if (definition == null) {
+        return slot.definition;
+    }
+
+    // Simple types only depend on their base, so they are completed right away
+    private void createSimpleType(TypeSlot slot, SymbolTable.Symbol symbol, XmlSchemaSimpleType schemaSimpleType) {
+        String unqualifiedTypeName = symbol.getUnqualifiedName();
+        TypeResolutionEvent event = TypeResolutionEvent.begin(symbol.getQualifiedName(), "simpleType");
 
-            // resolve the base
-            StructureDefinition baseDefinition = null;
-            if (schemaSimpleType.getContent() instanceof XmlSchemaSimpleTypeRestriction) {
-                baseDefinition = resolveDefinition(((XmlSchemaSimpleTypeRestriction)schemaSimpleType.getContent()).getBaseTypeName());
-                if (baseDefinition != null) {
-                    if (!options.getGenerateSimpleTypeRestrictions()) {
-                        return baseDefinition;
-                    }
+        // resolve the base
+        StructureDefinition baseDefinition = null;
+        if (schemaSimpleType.getContent() instanceof XmlSchemaSimpleTypeRestriction) {
+            baseDefinition = resolveDefinition(((XmlSchemaSimpleTypeRestriction)schemaSimpleType.getContent()).getBaseTypeName());
+            if (baseDefinition != null) {
+                if (!options.getGenerateSimpleTypeRestrictions()) {
+                    slot.resolve(baseDefinition);
+                    event.commit(0);
+                    return;
                 }
             }
+        }
 
-            // create the basic definition
-            definition = createStructureDefinition(schemaSimpleType);
-            definitions.put(qualifiedTypeName, definition);
+        // create the basic definition
+        StructureDefinition definition = createStructureDefinition(schemaSimpleType, symbol);
+        slot.resolve(definition);
 
-            if (baseDefinition != null) {
-                definition.setBase(baseDefinition.getUrl());
+        if (baseDefinition != null) {
+            definition.setBase(baseDefinition.getUrl());
+        }
+
+        // set the kind to logical, DataTypes cannot be defined in a logical model
+        definition.setKind(StructureDefinitionKindEnum.LOGICAL_MODEL);
+
+        // add elements
+        StructureDefinition.Snapshot snapshot = new StructureDefinition.Snapshot();
+        definition.setSnapshot(snapshot);
+        ElementDefinitionDt rootElement = snapshot.addElement();
+        String rootPath = unqualifiedTypeName;
+        rootElement.setPath(rootPath);
+        rootElement.setShort(unqualifiedTypeName);
+        rootElement.setMin(0);
+        rootElement.setMax("*");
+        if (baseDefinition != null) {
+            rootElement.addType().setCode(baseDefinition.getName());
+            rootElement.setBase(new ElementDefinitionDt.Base().setPath(baseDefinition.getUrl()).setMin(0).setMax("*"));
+        }
+        bind(rootElement, getValueSet(schemaSimpleType));
+
+        if (options.getExpandSnapshots()) {
+            StructureDefinition.Differential differential = new StructureDefinition.Differential();
+            differential.addElement(rootElement);
+            definition.setDifferential(differential);
+        }
+
+        // TODO: Mapping to base FHIR types...
+
+        event.commit(snapshot.getElement().size());
+        complete(slot, symbol.getQualifiedName(), definition);
+    }
+
+    private StructureDefinition resolveComplexType(XmlSchemaComplexType schemaComplexType) {
+        SymbolTable.Symbol symbol = symbols.get(getTypeName(schemaComplexType));
+        TypeSlot slot = getSlot(symbol.getQualifiedName());
+        if (!slot.resolved) {
+            synchronized (slot) {
+                if (!slot.resolved) {
+                    metrics.typeResolved();
+                    createComplexType(slot, symbol, schemaComplexType);
+                }
+                else {
+                    metrics.memoHit();
+                }
             }
+        }
+        else {
+            metrics.memoHit();
+        }
+
+        return slot.definition;
+    }
 
-            // set the kind to logical, DataTypes cannot be defined in a logical model
-            definition.setKind(StructureDefinitionKindEnum.LOGICAL_MODEL);
+    /*
+     * Decides what the type resolves to and queues the generation of its elements. This only recurses into the
+     * base type, which can't be circular, so it is safe to do under the slot's lock. Element types are resolved
+     * by the queued work, by then every type they could lead back to already has its definition in place.
+     */
+    private void createComplexType(final TypeSlot slot, final SymbolTable.Symbol symbol, final XmlSchemaComplexType schemaComplexType) {
+        StructureDefinition baseDefinition = null;
+        // Only committed if the type resolves to its base, otherwise generateComplexType records the type
+        TypeResolutionEvent event = TypeResolutionEvent.begin(symbol.getQualifiedName(), "complexType");
+
+        // resolve the base
+        if (schemaComplexType.getBaseSchemaTypeName() != null) {
+            baseDefinition = resolveDefinition(schemaComplexType.getBaseSchemaTypeName());
+        }
 
-            // add elements
-            StructureDefinition.Snapshot snapshot = new StructureDefinition.Snapshot();
-            definition.setSnapshot(snapshot);
-            ElementDefinitionDt rootElement = snapshot.addElement();
-            String rootPath = unqualifiedTypeName;
-            rootElement.setPath(rootPath);
-            rootElement.setShort(unqualifiedTypeName);
-            rootElement.setMin(0);
-            rootElement.setMax("*");
-            if (baseDefinition != null) {
-                rootElement.addType().setCode(baseDefinition.getName());
-                rootElement.setBase(new ElementDefinitionDt.Base().setPath(baseDefinition.getUrl()).setMin(0).setMax("*"));
+        if (baseDefinition != null && !options.getGenerateEmptyComplexTypes() && !hasElements(schemaComplexType)) {
+            slot.resolve(baseDefinition);
+            if (sink == null) {
+                if (created.contains(baseDefinition.getUrl())) {
+                    definitions.addReference(symbol.getQualifiedName(), baseDefinition.getUrl());
+                }
+                else {
+                    definitions.addExternal(symbol.getQualifiedName(), baseDefinition);
+                }
             }
+            else if (!created.contains(baseDefinition.getUrl())) {
+                // Definitions created from the schema are emitted when they complete, FHIR base types are not
+                emit(slot, baseDefinition);
+            }
+            event.commit(0);
+            return;
+        }
 
-            // TODO: Enumerations...
-            // TODO: Mapping to base FHIR types...
+        final StructureDefinition definition = createStructureDefinition(schemaComplexType, symbol);
+        slot.resolve(definition);
+
+        if (baseDefinition != null) {
+            definition.setBase(baseDefinition.getUrl());
         }
 
-        return definition;
+        // set the kind
+        definition.setKind(StructureDefinitionKindEnum.LOGICAL_MODEL);
+
+        final StructureDefinition resolvedBaseDefinition = baseDefinition;
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                generateComplexType(slot, symbol, schemaComplexType, definition, resolvedBaseDefinition);
+            }
+        });
     }
 
-    private StructureDefinition resolveComplexType(XmlSchemaComplexType schemaComplexType) {
-        if (schemaComplexType.isAnonymous()) {
-            return null;
+    private void generateComplexType(TypeSlot slot, SymbolTable.Symbol symbol, XmlSchemaComplexType schemaComplexType, StructureDefinition definition, StructureDefinition baseDefinition) {
+        String unqualifiedTypeName = symbol.getUnqualifiedName();
+        String pathPrefix = symbol.getPathPrefix();
+        TypeResolutionEvent event = TypeResolutionEvent.begin(symbol.getQualifiedName(), "complexType");
+
+        // add root element
+        StructureDefinition.Snapshot snapshot = new StructureDefinition.Snapshot();
+        definition.setSnapshot(snapshot);
+        ElementDefinitionDt rootElement = snapshot.addElement();
+        String rootPath = unqualifiedTypeName;
+        rootElement.setPath(rootPath);
+        rootElement.setShort(unqualifiedTypeName);
+        rootElement.setDefinition(buildMarkdown(definition.getDescription()));
+        rootElement.setMin(0);
+        rootElement.setMax("*");
+        if (baseDefinition != null) {
+            rootElement.addType().setCode(baseDefinition.getName());
+            rootElement.setBase(new ElementDefinitionDt.Base().setPath(baseDefinition.getUrl()).setMin(0).setMax("*"));
+        }
+
+        // add elements
+        if (options.getExpandSnapshots()) {
+            addExpandedElements(schemaComplexType, definition, pathPrefix, snapshot);
+        }
+        else {
+            addContentElements(schemaComplexType, definition, pathPrefix, snapshot);
         }
 
-        String qualifiedTypeName = getQualifiedTypeName(schemaComplexType.getQName(), namespaces);
-        String unqualifiedTypeName = unqualify(qualifiedTypeName);
-        StructureDefinition definition = definitions.get(qualifiedTypeName);
-        if (definition == null) {
-            StructureDefinition baseDefinition = null;
+        event.commit(snapshot.getElement().size());
+        complete(slot, symbol.getQualifiedName(), definition);
+    }
 
-            // resolve the base
-            if (schemaComplexType.getBaseSchemaTypeName() != null) {
-                baseDefinition = resolveDefinition(schemaComplexType.getBaseSchemaTypeName());
+    // The elements for the type's own content (attributes, particle or simple content value)
+    private void addContentElements(XmlSchemaComplexType schemaComplexType, StructureDefinition definition, String pathPrefix, StructureDefinition.Snapshot snapshot) {
+        List<XmlSchemaAttributeOrGroupRef> attributeContent;
+        XmlSchemaParticle particleContent;
+
+        if (schemaComplexType.getContentModel() != null) {
+            XmlSchemaContent content = schemaComplexType.getContentModel().getContent();
+            if (content instanceof XmlSchemaComplexContentRestriction) {
+                XmlSchemaComplexContentRestriction restrictionContent = (XmlSchemaComplexContentRestriction)content;
+                attributeContent = restrictionContent.getAttributes();
+                particleContent = restrictionContent.getParticle();
             }
+            else if (content instanceof XmlSchemaComplexContentExtension) {
+                XmlSchemaComplexContentExtension extensionContent = (XmlSchemaComplexContentExtension)content;
+                attributeContent = extensionContent.getAttributes();
+                particleContent = extensionContent.getParticle();
+            }
+            // For complex types with simple content, create a new class type with a value element for the content
+            else if (content instanceof XmlSchemaSimpleContentRestriction) {
+                XmlSchemaSimpleContentRestriction restrictionContent = (XmlSchemaSimpleContentRestriction)content;
 
-            definition = createStructureDefinition(schemaComplexType);
-            definitions.put(qualifiedTypeName, definition);
+                StructureDefinition valueDefinition = resolveDefinition(restrictionContent.getBaseTypeName());
+                // Enumerations of the restriction itself, otherwise those of the base
+                ValueSet valueSet = useValueSet(valueSets.resolve(restrictionContent.getFacets(), options, valueSetDate, metrics));
+                addValueElement(valueDefinition, valueSet != null ? valueSet : getValueSet(null, restrictionContent.getBaseTypeName()), definition, pathPrefix, snapshot);
 
-            if (baseDefinition != null) {
-                definition.setBase(baseDefinition.getUrl());
-            }
-
-            // set the kind
-            definition.setKind(StructureDefinitionKindEnum.LOGICAL_MODEL);
-
-            // add root element
-            StructureDefinition.Snapshot snapshot = new StructureDefinition.Snapshot();
-            definition.setSnapshot(snapshot);
-            ElementDefinitionDt rootElement = snapshot.addElement();
-            String rootPath = unqualifiedTypeName;
-            rootElement.setPath(rootPath);
-            rootElement.setShort(unqualifiedTypeName);
-            rootElement.setDefinition(buildMarkdown(definition.getDescription()));
-            rootElement.setMin(0);
-            rootElement.setMax("*");
-            if (baseDefinition != null) {
-                rootElement.addType().setCode(baseDefinition.getName());
-                rootElement.setBase(new ElementDefinitionDt.Base().setPath(baseDefinition.getUrl()).setMin(0).setMax("*"));
+                attributeContent = restrictionContent.getAttributes();
+                particleContent = null;
             }
+            else if (content instanceof XmlSchemaSimpleContentExtension) {
+                XmlSchemaSimpleContentExtension extensionContent = (XmlSchemaSimpleContentExtension)content;
+                attributeContent = extensionContent.getAttributes();
+                particleContent = null;
 
-            // add elements
-            List<XmlSchemaAttributeOrGroupRef> attributeContent;
-            XmlSchemaParticle particleContent;
-
-            if (schemaComplexType.getContentModel() != null) {
-                XmlSchemaContent content = schemaComplexType.getContentModel().getContent();
-                if (content instanceof XmlSchemaComplexContentRestriction) {
-                    XmlSchemaComplexContentRestriction restrictionContent = (XmlSchemaComplexContentRestriction)content;
-                    attributeContent = restrictionContent.getAttributes();
-                    particleContent = restrictionContent.getParticle();
-                }
-                else if (content instanceof XmlSchemaComplexContentExtension) {
-                    XmlSchemaComplexContentExtension extensionContent = (XmlSchemaComplexContentExtension)content;
-                    attributeContent = extensionContent.getAttributes();
-                    particleContent = extensionContent.getParticle();
-                }
-                // For complex types with simple content, create a new class type with a value element for the content
-                else if (content instanceof XmlSchemaSimpleContentRestriction) {
-                    XmlSchemaSimpleContentRestriction restrictionContent = (XmlSchemaSimpleContentRestriction)content;
+                StructureDefinition valueDefinition = resolveDefinition(extensionContent.getBaseTypeName());
+                addValueElement(valueDefinition, getValueSet(null, extensionContent.getBaseTypeName()), definition, pathPrefix, snapshot);
+            }
+            else {
+                throw new IllegalArgumentException("Unrecognized Schema Content: " + content.toString());
+            }
+        }
+        else {
+            attributeContent = schemaComplexType.getAttributes();
+            particleContent = schemaComplexType.getParticle();
+        }
 
-                    StructureDefinition valueDefinition = resolveDefinition(restrictionContent.getBaseTypeName());
-                    addValueElement(valueDefinition, definition, rootPath, snapshot);
+        for (XmlSchemaAttributeOrGroupRef attribute : attributeContent) {
+            resolveDefinitionElements(attribute, definition, pathPrefix, snapshot);
+        }
 
-                    attributeContent = restrictionContent.getAttributes();
-                    particleContent = null;
-                }
-                else if (content instanceof XmlSchemaSimpleContentExtension) {
-                    XmlSchemaSimpleContentExtension extensionContent = (XmlSchemaSimpleContentExtension)content;
-                    attributeContent = extensionContent.getAttributes();
-                    particleContent = null;
+        if (particleContent != null) {
+            resolveDefinitionElements(particleContent, definition, pathPrefix, snapshot);
+        }
+    }
 
-                    StructureDefinition valueDefinition = resolveDefinition(extensionContent.getBaseTypeName());
-                    addValueElement(valueDefinition, definition, rootPath, snapshot);
-                }
-                else {
-                    throw new IllegalArgumentException("Unrecognized Schema Content: " + content.toString());
-                }
+    // Inherited elements re-rooted under the type's path followed by its own, the differential has the root and its own
+    private void addExpandedElements(XmlSchemaComplexType schemaComplexType, StructureDefinition definition, String pathPrefix, StructureDefinition.Snapshot snapshot) {
+        Expansion expansion = getExpansion(schemaComplexType);
+        StructureDefinition.Differential differential = new StructureDefinition.Differential();
+        differential.addElement(snapshot.getElement().get(0));
+        for (int i = 0; i < expansion.elements.size(); i++) {
+            ElementDefinitionDt element = copyElement(expansion.elements.get(i), pathPrefix + expansion.elements.get(i).getPath());
+            if (i < expansion.inheritedCount) {
+                element.setBase(new ElementDefinitionDt.Base().setPath(expansion.declaredPaths.get(i)).setMin(element.getMinElement()).setMax(element.getMaxElement()));
             }
             else {
-                attributeContent = schemaComplexType.getAttributes();
-                particleContent = schemaComplexType.getParticle();
+                differential.addElement(element);
             }
+            snapshot.addElement(element);
+        }
+        definition.setDifferential(differential);
+    }
 
-            for (XmlSchemaAttributeOrGroupRef attribute : attributeContent) {
-                resolveDefinitionElements(attribute, definition, rootPath, snapshot);
+    // Computed once per type from the schema, so it doesn't matter whether the base type has been generated yet
+    private Expansion getExpansion(XmlSchemaComplexType schemaComplexType) {
+        QName typeName = getTypeName(schemaComplexType);
+        Expansion expansion = expansions.get(typeName);
+        if (expansion == null) {
+            // Computing it twice in a race gives the same elements
+            Expansion newExpansion = createExpansion(schemaComplexType);
+            expansion = expansions.putIfAbsent(typeName, newExpansion);
+            if (expansion == null) {
+                expansion = newExpansion;
             }
+        }
+        return expansion;
+    }
 
-            if (particleContent != null) {
-                resolveDefinitionElements(particleContent, definition, rootPath, snapshot);
+    private Expansion createExpansion(XmlSchemaComplexType schemaComplexType) {
+        List<ElementDefinitionDt> elements = new ArrayList<>();
+        List<String> declaredPaths = new ArrayList<>();
+
+        // A restriction restates the content of its base, only an extension inherits it. FHIR base types add nothing
+        QName baseTypeName = schemaComplexType.getBaseSchemaTypeName();
+        if (baseTypeName != null && !baseTypeName.getNamespaceURI().equals(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+                && !(schemaComplexType.getContentModel() != null && schemaComplexType.getContentModel().getContent() instanceof XmlSchemaComplexContentRestriction)) {
+            XmlSchemaType baseType = findSchemaType(baseTypeName);
+            if (baseType instanceof XmlSchemaComplexType) {
+                Expansion baseExpansion = getExpansion((XmlSchemaComplexType)baseType);
+                elements.addAll(baseExpansion.elements);
+                declaredPaths.addAll(baseExpansion.declaredPaths);
             }
+        }
+        int inheritedCount = elements.size();
+
+        StructureDefinition.Snapshot content = new StructureDefinition.Snapshot();
+        addContentElements(schemaComplexType, null, "", content);
+        String pathPrefix = symbols.get(getTypeName(schemaComplexType)).getPathPrefix();
+        for (ElementDefinitionDt element : content.getElement()) {
+            elements.add(element);
+            declaredPaths.add(pathPrefix + element.getPath());
+        }
+
+        return new Expansion(elements, declaredPaths, inheritedCount);
+    }
+
+    // Copies the parts of an element the importer sets, values are shared
+    private static ElementDefinitionDt copyElement(ElementDefinitionDt source, String path) {
+        ElementDefinitionDt element = new ElementDefinitionDt();
+        element.setPath(path);
+        element.setName(source.getNameElement());
+        element.setShort(source.getShortElement());
+        element.setDefinition(source.getDefinitionElement());
+        element.setMin(source.getMinElement());
+        element.setMax(source.getMaxElement());
+        for (ElementDefinitionDt.Type type : source.getType()) {
+            element.addType().setCode(type.getCode());
+        }
+        if (!source.getBinding().isEmpty()) {
+            element.setBinding(source.getBinding());
+        }
+        return element;
+    }
+
+    // Whether any content of the type becomes an element, determined without resolving the referenced types
+    private boolean hasElements(XmlSchemaComplexType schemaComplexType) {
+        List<XmlSchemaAttributeOrGroupRef> attributeContent;
+        XmlSchemaParticle particleContent;
+
+        if (schemaComplexType.getContentModel() != null) {
+            XmlSchemaContent content = schemaComplexType.getContentModel().getContent();
+            if (content instanceof XmlSchemaComplexContentRestriction) {
+                attributeContent = ((XmlSchemaComplexContentRestriction)content).getAttributes();
+                particleContent = ((XmlSchemaComplexContentRestriction)content).getParticle();
+            }
+            else if (content instanceof XmlSchemaComplexContentExtension) {
+                attributeContent = ((XmlSchemaComplexContentExtension)content).getAttributes();
+                particleContent = ((XmlSchemaComplexContentExtension)content).getParticle();
+            }
+            else {
+                // Simple content always gets a value element (unrecognized content fails when the type is generated)
+                return true;
+            }
+        }
+        else {
+            attributeContent = schemaComplexType.getAttributes();
+            particleContent = schemaComplexType.getParticle();
+        }
 
-            if (snapshot.getElement().size() == 1) {
-                if (!options.getGenerateEmptyComplexTypes() && baseDefinition != null) {
-                    definitions.put(qualifiedTypeName, baseDefinition);
-                    return baseDefinition;
+        for (XmlSchemaAttributeOrGroupRef attribute : attributeContent) {
+            if (hasElements(attribute)) {
+                return true;
+            }
+        }
+
+        return particleContent != null && hasElements(particleContent);
+    }
+
+    private boolean hasElements(XmlSchemaParticle particle) {
+        if (particle instanceof XmlSchemaElement) {
+            return resolvesToDefinition((XmlSchemaElement)particle);
+        }
+        else if (particle instanceof XmlSchemaSequence) {
+            for (XmlSchemaSequenceMember member : ((XmlSchemaSequence)particle).getItems()) {
+                if (member instanceof XmlSchemaParticle && hasElements((XmlSchemaParticle)member)) {
+                    return true;
+                }
+            }
+        }
+        else if (particle instanceof XmlSchemaAll) {
+            for (XmlSchemaAllMember member : ((XmlSchemaAll)particle).getItems()) {
+                if (member instanceof XmlSchemaParticle && hasElements((XmlSchemaParticle)member)) {
+                    return true;
+                }
+            }
+        }
+        else if (particle instanceof XmlSchemaChoice) {
+            for (XmlSchemaChoiceMember member : ((XmlSchemaChoice)particle).getItems()) {
+                if (member instanceof XmlSchemaElement && resolvesToDefinition((XmlSchemaElement)member)) {
+                    return true;
                 }
             }
         }
+        else if (particle instanceof XmlSchemaGroupRef) {
+            return hasElements(((XmlSchemaGroupRef)particle).getParticle());
+        }
 
-        return definition;
+        return false;
     }
 
-    private MarkdownDt buildMarkdown(String value) {
-        MarkdownDt markdown = new MarkdownDt();
-        markdown.setValue(value);
-        return markdown;
+    private boolean hasElements(XmlSchemaAttributeOrGroupRef attribute) {
+        if (attribute instanceof XmlSchemaAttribute) {
+            return resolvesToDefinition((XmlSchemaAttribute)attribute);
+        }
+        else if (attribute instanceof XmlSchemaAttributeGroupRef) {
+            return hasElements(((XmlSchemaAttributeGroupRef)attribute).getRef().getTarget());
+        }
+
+        return false;
+    }
+
+    private boolean hasElements(XmlSchemaAttributeGroup attributeGroup) {
+        for (XmlSchemaAttributeGroupMember member : attributeGroup.getAttributes()) {
+            if (member instanceof XmlSchemaAttribute && resolvesToDefinition((XmlSchemaAttribute)member)) {
+                return true;
+            }
+            else if (member instanceof XmlSchemaAttributeGroupRef && hasElements(((XmlSchemaAttributeGroupRef)member).getRef().getTarget())) {
+                return true;
+            }
+            else if (member instanceof XmlSchemaAttributeGroup && hasElements((XmlSchemaAttributeGroup)member)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Mirrors resolveDefinitionElement, which drops elements whose type does not resolve to a definition
+    private boolean resolvesToDefinition(XmlSchemaElement element) {
+        if (element.isRef()) {
+            element = element.getRef().getTarget();
+        }
+
+        return resolvesToDefinition(element.getSchemaType(), element.getSchemaTypeName());
     }
 
-    private String getShort(String documentation) {
-        int i = documentation.indexOf('.');
-        if (i >= 0) {
-            return documentation.substring(0, i);
+    private boolean resolvesToDefinition(XmlSchemaAttribute attribute) {
+        if (attribute.isRef()) {
+            attribute = attribute.getRef().getTarget();
         }
 
-        return documentation;
+        return resolvesToDefinition(attribute.getSchemaType(), attribute.getSchemaTypeName());
     }
 
-    private void addValueElement(StructureDefinition valueDefinition, StructureDefinition definition, String rootPath, StructureDefinition.Snapshot snapshot) {
+    private boolean resolvesToDefinition(XmlSchemaType schemaType, QName schemaTypeName) {
+        if (schemaType != null) {
+            return schemaType instanceof XmlSchemaSimpleType || schemaType instanceof XmlSchemaComplexType;
+        }
+
+        return schemaTypeName != null;
+    }
+
+    private MarkdownDt buildMarkdown(String value) {
+        MarkdownDt markdown = new MarkdownDt();
+        markdown.setValue(value);
+        return markdown;
+    }
+
+    private void addValueElement(StructureDefinition valueDefinition, ValueSet valueSet, StructureDefinition definition, String pathPrefix, StructureDefinition.Snapshot snapshot) {
         ElementDefinitionDt element = snapshot.addElement();
-        element.setPath(String.format("%s.%s", rootPath, "value"));
+        element.setPath(pathPrefix + "value");
         element.addType().setCode(valueDefinition.getName());
         element.setName("value");
         element.setMin(0);
         element.setMax("1");
         element.setShort("Value");
         element.setDefinition(buildMarkdown("This element contains the value for the type."));
+        bind(element, valueSet);
+    }
+
+    // The options' date in UTC to the second, so it reads the same on every machine, or the current time
+    static DateTimeDt createDate(XsdImportOptions options) {
+        if (options.getDate() == null) {
+            return DateTimeDt.withCurrentTime();
+        }
+        return new DateTimeDt(options.getDate(), TemporalPrecisionEnum.SECOND, TimeZone.getTimeZone("UTC"));
+    }
+
+    private static void bind(ElementDefinitionDt element, ValueSet valueSet) {
+        if (valueSet != null) {
+            element.getBinding().setStrength(BindingStrengthEnum.REQUIRED).setValueSet(new ResourceReferenceDt(valueSet.getUrl()));
+        }
+    }
+
+    // The ValueSet of the element's or attribute's type, if it is a simple type with enumerations
+    private ValueSet getValueSet(XmlSchemaType schemaType, QName schemaTypeName) {
+        if (schemaType == null && schemaTypeName != null && !schemaTypeName.getNamespaceURI().equals(XMLConstants.W3C_XML_SCHEMA_NS_URI)) {
+            schemaType = findSchemaType(schemaTypeName);
+        }
+        if (schemaType instanceof XmlSchemaSimpleType && !XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(getTypeName(schemaType).getNamespaceURI())) {
+            return getValueSet((XmlSchemaSimpleType)schemaType);
+        }
+        return null;
+    }
+
+    // Computed once per type from the schema, types seeded from an earlier import still bind to their ValueSet
+    private ValueSet getValueSet(XmlSchemaSimpleType schemaSimpleType) {
+        QName typeName = getTypeName(schemaSimpleType);
+        ValueSetBinding binding = valueSetBindings.get(typeName);
+        if (binding == null) {
+            ValueSetBinding newBinding = new ValueSetBinding(createValueSet(schemaSimpleType));
+            binding = valueSetBindings.putIfAbsent(typeName, newBinding);
+            if (binding == null) {
+                binding = newBinding;
+            }
+        }
+        return useValueSet(binding.valueSet);
+    }
+
+    // A restriction without enumerations of its own allows the values of its base
+    private ValueSet createValueSet(XmlSchemaSimpleType schemaSimpleType) {
+        if (!(schemaSimpleType.getContent() instanceof XmlSchemaSimpleTypeRestriction)) {
+            return null;
+        }
+
+        XmlSchemaSimpleTypeRestriction restriction = (XmlSchemaSimpleTypeRestriction)schemaSimpleType.getContent();
+        ValueSet valueSet = valueSets.resolve(restriction.getFacets(), options, valueSetDate, metrics);
+        return valueSet != null ? valueSet : getValueSet(null, restriction.getBaseTypeName());
+    }
+
+    // Each ValueSet the import binds to is handed to the sink once
+    private ValueSet useValueSet(ValueSet valueSet) {
+        if (valueSet != null && usedValueSets.putIfAbsent(valueSet.getUrl(), valueSet) == null && sink != null) {
+            sink.accept(valueSet);
+        }
+        return valueSet;
     }
 
-    private void resolveDefinitionElements(XmlSchemaParticle particle, StructureDefinition definition, String rootPath, StructureDefinition.Snapshot snapshot) {
+    private void resolveDefinitionElements(XmlSchemaParticle particle, StructureDefinition definition, String pathPrefix, StructureDefinition.Snapshot snapshot) {
         if (particle instanceof XmlSchemaElement) {
-            ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaElement)particle, rootPath);
+            ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaElement)particle, pathPrefix);
             if (element != null) {
                 snapshot.addElement(element);
             }
@@ -386,7 +982,7 @@ public class XsdImporter {
             XmlSchemaSequence sequence = (XmlSchemaSequence)particle;
             for (XmlSchemaSequenceMember member : sequence.getItems()) {
                 if (member instanceof XmlSchemaParticle) {
-                    resolveDefinitionElements((XmlSchemaParticle)member, definition, rootPath, snapshot);
+                    resolveDefinitionElements((XmlSchemaParticle)member, definition, pathPrefix, snapshot);
                 }
             }
         }
@@ -394,7 +990,7 @@ public class XsdImporter {
             XmlSchemaAll all = (XmlSchemaAll)particle;
             for (XmlSchemaAllMember member : all.getItems()) {
                 if (member instanceof XmlSchemaParticle) {
-                    resolveDefinitionElements((XmlSchemaParticle)member, definition, rootPath, snapshot);
+                    resolveDefinitionElements((XmlSchemaParticle)member, definition, pathPrefix, snapshot);
                 }
             }
         }
@@ -402,7 +998,7 @@ public class XsdImporter {
             XmlSchemaChoice choice = (XmlSchemaChoice)particle;
             for (XmlSchemaChoiceMember member : choice.getItems()) {
                 if (member instanceof XmlSchemaElement) {
-                    ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaElement)member, rootPath);
+                    ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaElement)member, pathPrefix);
                     if (element != null) {
                         snapshot.addElement(element);
                     }
@@ -411,11 +1007,11 @@ public class XsdImporter {
         }
         else if (particle instanceof XmlSchemaGroupRef) {
             XmlSchemaGroupRef ref = (XmlSchemaGroupRef)particle;
-            resolveDefinitionElements(ref.getParticle(), definition, rootPath, snapshot);
+            resolveDefinitionElements(ref.getParticle(), definition, pathPrefix, snapshot);
         }
     }
 
-    private ElementDefinitionDt resolveDefinitionElement(XmlSchemaElement element, String rootPath) {
+    private ElementDefinitionDt resolveDefinitionElement(XmlSchemaElement element, String pathPrefix) {
         if (element.isRef()) {
             element = element.getRef().getTarget();
         }
@@ -433,17 +1029,14 @@ public class XsdImporter {
         }
 
         if (elementTypeDefinition == null) {
-            // TODO: This should import anonymous types as element structures, not sure we have that use case right now though....
             return null;
         }
 
         ElementDefinitionDt elementDefinition = new ElementDefinitionDt();
 
-        elementDefinition.setPath(String.format("%s.%s", rootPath, element.getName()));
+        elementDefinition.setPath(pathPrefix + element.getName());
         elementDefinition.setName(element.getName());
-        String documentation = getDocumentation(element.getAnnotation());
-        elementDefinition.setShort(getShort(documentation));
-        elementDefinition.setDefinition(buildMarkdown(documentation));
+        setDocumentation(elementDefinition, element.getAnnotation());
         // TODO: elementDefinition.addAlias();
         elementDefinition.setMin((int) element.getMinOccurs());
         if (element.getMaxOccurs() == Long.MAX_VALUE) {
@@ -455,11 +1048,12 @@ public class XsdImporter {
 
         // TODO: References
         elementDefinition.addType().setCode(elementTypeDefinition.getName());
+        bind(elementDefinition, getValueSet(schemaType, element.getSchemaTypeName()));
 
         return elementDefinition;
     }
 
-    private ElementDefinitionDt resolveDefinitionElement(XmlSchemaAttribute attribute, String rootPath) {
+    private ElementDefinitionDt resolveDefinitionElement(XmlSchemaAttribute attribute, String pathPrefix) {
         if (attribute.isRef()) {
             attribute = attribute.getRef().getTarget();
         }
@@ -477,18 +1071,15 @@ public class XsdImporter {
         }
 
         if (elementTypeDefinition == null) {
-            // TODO: This should import anonymous types as element structures...
             return null;
         }
 
         ElementDefinitionDt elementDefinition = new ElementDefinitionDt();
 
-        elementDefinition.setPath(String.format("%s.%s", rootPath, attribute.getName()));
+        elementDefinition.setPath(pathPrefix + attribute.getName());
         elementDefinition.setName(attribute.getName());
         // TODO: elementDefinition.addAlias();
-        String documentation = getDocumentation(attribute.getAnnotation());
-        elementDefinition.setShort(getShort(documentation));
-        elementDefinition.setDefinition(buildMarkdown(documentation));
+        setDocumentation(elementDefinition, attribute.getAnnotation());
         switch (attribute.getUse()) {
             case NONE:
                 break;
@@ -508,35 +1099,36 @@ public class XsdImporter {
 
         // TODO: References
         elementDefinition.addType().setCode(elementTypeDefinition.getName());
+        bind(elementDefinition, getValueSet(schemaType, attribute.getSchemaTypeName()));
 
         return elementDefinition;
     }
 
-    private void resolveDefinitionElements(XmlSchemaAttributeOrGroupRef attribute, StructureDefinition definition, String rootPath, StructureDefinition.Snapshot snapshot) {
+    private void resolveDefinitionElements(XmlSchemaAttributeOrGroupRef attribute, StructureDefinition definition, String pathPrefix, StructureDefinition.Snapshot snapshot) {
         if (attribute instanceof XmlSchemaAttribute) {
-            ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaAttribute)attribute, rootPath);
+            ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaAttribute)attribute, pathPrefix);
             if (element != null) {
                 snapshot.addElement(element);
             }
         }
         else if (attribute instanceof XmlSchemaAttributeGroupRef) {
-            resolveDefinitionElements(((XmlSchemaAttributeGroupRef)attribute).getRef().getTarget(), definition, rootPath, snapshot);
+            resolveDefinitionElements(((XmlSchemaAttributeGroupRef)attribute).getRef().getTarget(), definition, pathPrefix, snapshot);
         }
     }
 
-    private void resolveDefinitionElements(XmlSchemaAttributeGroup attributeGroup, StructureDefinition definition, String rootPath, StructureDefinition.Snapshot snapshot) {
+    private void resolveDefinitionElements(XmlSchemaAttributeGroup attributeGroup, StructureDefinition definition, String pathPrefix, StructureDefinition.Snapshot snapshot) {
         for (XmlSchemaAttributeGroupMember member : attributeGroup.getAttributes()) {
             if (member instanceof XmlSchemaAttribute) {
-                ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaAttribute)member, rootPath);
+                ElementDefinitionDt element = resolveDefinitionElement((XmlSchemaAttribute)member, pathPrefix);
                 if (element != null) {
                     snapshot.addElement(element);
                 }
             }
             else if (member instanceof XmlSchemaAttributeGroupRef) {
-                resolveDefinitionElements(((XmlSchemaAttributeGroupRef)member).getRef().getTarget(), definition, rootPath, snapshot);
+                resolveDefinitionElements(((XmlSchemaAttributeGroupRef)member).getRef().getTarget(), definition, pathPrefix, snapshot);
             }
             else if (member instanceof XmlSchemaAttributeGroup) {
-                resolveDefinitionElements((XmlSchemaAttributeGroup)member, definition, rootPath, snapshot);
+                resolveDefinitionElements((XmlSchemaAttributeGroup)member, definition, pathPrefix, snapshot);
             }
         }
     }
@@ -0,0 +1,43 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Importing types built from inline (anonymous) element types, where the same few structures are repeated throughout
+ * the schema or every element has a structure of its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnonymousTypeBenchmark {
+    @Param({"200"})
+    public int typeCount;
+
+    @Param({"5", "1000"})
+    public int structureCount;
+
+    private XmlSchema schema;
+    private FhirTypeRegistry fhirTypes;
+    private XsdImportOptions options;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.parse(BenchmarkSchemas.inline(typeCount, structureCount));
+        fhirTypes = BenchmarkSchemas.fhirTypes();
+        options = new XsdImportOptions();
+    }
+
+    @Benchmark
+    public XsdImporter importInline() {
+        return new XsdImporter(schema, BenchmarkSchemas.MODEL_NAME, fhirTypes, options);
+    }
+}
@@ -0,0 +1,170 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.apache.ws.commons.schema.XmlSchemaCollection;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schemas and FHIR base types for the benchmarks, generated in memory so the benchmarks need no input files.
+ */
+public final class BenchmarkSchemas {
+    public static final String NAMESPACE = "urn:benchmark";
+    public static final String MODEL_NAME = "Benchmark";
+
+    private BenchmarkSchemas() {
+    }
+
+    // Base types with the fields the importer uses, in place of the profiles of the published specification
+    public static FhirTypeRegistry fhirTypes() {
+        List<StructureDefinition> fhirTypes = new ArrayList<>();
+        for (String typeName : FhirTypeRegistry.getTypeNames()) {
+            StructureDefinition sd = new StructureDefinition();
+            sd.setId(typeName);
+            sd.setName(typeName);
+            sd.setUrl("http://hl7.org/fhir/StructureDefinition/" + typeName);
+            sd.setFhirVersion("1.0.2");
+            fhirTypes.add(sd);
+        }
+        return FhirTypeRegistry.fromDefinitions(fhirTypes);
+    }
+
+    public static XmlSchema parse(byte[] schema) {
+        return new XmlSchemaCollection().read(new StreamSource(new ByteArrayInputStream(schema)));
+    }
+
+    /**
+     * Complex types that each reference a few earlier types, every fifth one starting a new extension chain.
+     */
+    public static byte[] flat(int typeCount) {
+        StringBuilder sb = start();
+        for (int i = 0; i < typeCount; i++) {
+            boolean extend = i > 0 && i % 5 != 0;
+            sb.append(String.format("<xs:complexType name=\"Type%d\">", i));
+            sb.append(annotation(String.format("Benchmark type %d. Generated.", i)));
+            if (extend) {
+                sb.append(String.format("<xs:complexContent><xs:extension base=\"b:Type%d\">", i - 1));
+            }
+            sb.append("<xs:sequence>");
+            sb.append(String.format("<xs:element name=\"name%d\" type=\"xs:string\"/>", i));
+            sb.append(String.format("<xs:element name=\"when%d\" type=\"xs:dateTime\" minOccurs=\"0\"/>", i));
+            if (i > 0) {
+                // Scattered over the earlier types, a multiple of i alone would always be Type0
+                int referenced = (int)((i * 7919L) % 10007) % i;
+                sb.append(String.format("<xs:element name=\"ref%d\" type=\"b:Type%d\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>", i, referenced));
+            }
+            sb.append("</xs:sequence>");
+            sb.append(String.format("<xs:attribute name=\"uri%d\" type=\"xs:anyURI\"/>", i));
+            if (extend) {
+                sb.append("</xs:extension></xs:complexContent>");
+            }
+            sb.append("</xs:complexType>");
+        }
+        return end(sb);
+    }
+
+    /**
+     * A single extension chain of the given depth, resolving the last type resolves all of them.
+     */
+    public static byte[] extensionChain(int depth) {
+        StringBuilder sb = start();
+        sb.append("<xs:complexType name=\"Level0\"><xs:sequence><xs:element name=\"value0\" type=\"xs:string\"/></xs:sequence></xs:complexType>");
+        for (int i = 1; i < depth; i++) {
+            sb.append(String.format("<xs:complexType name=\"Level%d\"><xs:complexContent><xs:extension base=\"b:Level%d\">", i, i - 1));
+            sb.append(String.format("<xs:sequence><xs:element name=\"value%d\" type=\"xs:string\"/><xs:element name=\"parent%d\" type=\"b:Level%d\" minOccurs=\"0\"/></xs:sequence>", i, i, i - 1));
+            sb.append("</xs:extension></xs:complexContent></xs:complexType>");
+        }
+        return end(sb);
+    }
+
+    /**
+     * Types whose elements and attributes all carry documentation of the given size, partly from a shared
+     * attribute group.
+     */
+    public static byte[] annotated(int typeCount, int documentationSize) {
+        StringBuilder documentation = new StringBuilder();
+        while (documentation.length() < documentationSize) {
+            documentation.append("Documentation sentence for the benchmark. ");
+        }
+        documentation.setLength(documentationSize);
+        String text = documentation.toString();
+
+        StringBuilder sb = start();
+        sb.append("<xs:attributeGroup name=\"Shared\">");
+        for (int a = 0; a < 5; a++) {
+            sb.append(String.format("<xs:attribute name=\"shared%d\" type=\"xs:string\">%s</xs:attribute>", a, annotation(text)));
+        }
+        sb.append("</xs:attributeGroup>");
+        for (int i = 0; i < typeCount; i++) {
+            sb.append(String.format("<xs:complexType name=\"Type%d\">%s<xs:sequence>", i, annotation(text)));
+            for (int e = 0; e < 10; e++) {
+                sb.append(String.format("<xs:element name=\"element%d\" type=\"xs:string\">%s</xs:element>", e, annotation(text)));
+            }
+            sb.append("</xs:sequence><xs:attributeGroup ref=\"b:Shared\"/></xs:complexType>");
+        }
+        return end(sb);
+    }
+
+    /**
+     * Types whose elements all have inline (anonymous) types, nested two deep, drawn from the given number of distinct
+     * structures.
+     */
+    public static byte[] inline(int typeCount, int structureCount) {
+        StringBuilder sb = start();
+        for (int i = 0; i < typeCount; i++) {
+            sb.append(String.format("<xs:complexType name=\"Type%d\"><xs:sequence>", i));
+            for (int e = 0; e < 5; e++) {
+                int structure = (i * 5 + e) % structureCount;
+                sb.append(String.format("<xs:element name=\"part%d\" minOccurs=\"0\"><xs:complexType><xs:sequence>", e));
+                sb.append(String.format("<xs:element name=\"code%d\" type=\"xs:string\"/>", structure));
+                sb.append("<xs:element name=\"detail\"><xs:complexType><xs:sequence>");
+                sb.append(String.format("<xs:element name=\"note%d\" type=\"xs:string\" maxOccurs=\"unbounded\"/>", structure));
+                sb.append("</xs:sequence></xs:complexType></xs:element>");
+                sb.append("</xs:sequence><xs:attribute name=\"kind\"><xs:simpleType><xs:restriction base=\"xs:string\"><xs:maxLength value=\"10\"/></xs:restriction></xs:simpleType></xs:attribute></xs:complexType></xs:element>");
+            }
+            sb.append("</xs:sequence></xs:complexType>");
+        }
+        return end(sb);
+    }
+
+    /**
+     * Enumerated simple types drawn from the given number of distinct code lists, each used by a complex type's
+     * element and attribute.
+     */
+    public static byte[] enumerated(int typeCount, int codeListCount) {
+        StringBuilder sb = start();
+        for (int i = 0; i < typeCount; i++) {
+            int codeList = i % codeListCount;
+            sb.append(String.format("<xs:simpleType name=\"Code%d\"><xs:restriction base=\"xs:string\">", i));
+            for (int c = 0; c < 20; c++) {
+                sb.append(String.format("<xs:enumeration value=\"CODE_%d_%d\">%s</xs:enumeration>", codeList, c, annotation(String.format("Code %d of list %d.", c, codeList))));
+            }
+            sb.append("</xs:restriction></xs:simpleType>");
+            sb.append(String.format("<xs:complexType name=\"Coded%d\"><xs:sequence><xs:element name=\"code\" type=\"b:Code%d\"/></xs:sequence>", i, i));
+            sb.append(String.format("<xs:attribute name=\"kind\" type=\"b:Code%d\"/></xs:complexType>", i));
+        }
+        return end(sb);
+    }
+
+    private static String annotation(String documentation) {
+        return String.format("<xs:annotation><xs:documentation>%s</xs:documentation></xs:annotation>", documentation);
+    }
+
+    static StringBuilder start() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append(String.format("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:b=\"%s\" targetNamespace=\"%s\" elementFormDefault=\"qualified\">", NAMESPACE, NAMESPACE));
+        return sb;
+    }
+
+    static byte[] end(StringBuilder sb) {
+        sb.append("</xs:schema>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
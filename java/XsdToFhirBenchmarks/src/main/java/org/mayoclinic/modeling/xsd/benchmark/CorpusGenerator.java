@@ -0,0 +1,174 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Generates valid schemas of any size with the constructs found in real models, for measuring how the importer scales.
+ *
+ * Types come in extension chains of the given depth. Each type has elements referring to other types of the corpus
+ * (its fan-out, references go both ways so there are cycles), a choice between a few alternatives and documentation of
+ * the given size on the type and each of its elements. The type at the start of each chain also refers to a model group
+ * and an attribute group, which its derived types inherit. The same settings always generate the same schema.
+ */
+public class CorpusGenerator {
+    public CorpusGenerator() {
+        typeCount = 1000;
+        extensionDepth = 5;
+        fanOut = 3;
+        attributeGroupCount = 10;
+        groupCount = 10;
+        choiceSize = 3;
+        annotationSize = 200;
+    }
+
+    private int typeCount;
+    public int getTypeCount() {
+        return typeCount;
+    }
+
+    public void setTypeCount(int value) {
+        typeCount = value;
+    }
+
+    private int extensionDepth;
+    public int getExtensionDepth() {
+        return extensionDepth;
+    }
+
+    // Length of the extension chains, 1 for types without a base type
+    public void setExtensionDepth(int value) {
+        extensionDepth = value;
+    }
+
+    private int fanOut;
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    // Elements of each type that refer to other types of the corpus
+    public void setFanOut(int value) {
+        fanOut = value;
+    }
+
+    private int attributeGroupCount;
+    public int getAttributeGroupCount() {
+        return attributeGroupCount;
+    }
+
+    public void setAttributeGroupCount(int value) {
+        attributeGroupCount = value;
+    }
+
+    private int groupCount;
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    public void setGroupCount(int value) {
+        groupCount = value;
+    }
+
+    private int choiceSize;
+    public int getChoiceSize() {
+        return choiceSize;
+    }
+
+    // Alternatives of the choice in each type, 0 for no choice
+    public void setChoiceSize(int value) {
+        choiceSize = value;
+    }
+
+    private int annotationSize;
+    public int getAnnotationSize() {
+        return annotationSize;
+    }
+
+    // Characters of documentation on each type and element, 0 for none
+    public void setAnnotationSize(int value) {
+        annotationSize = value;
+    }
+
+    public byte[] generate() {
+        if (typeCount < 1 || extensionDepth < 1) {
+            throw new IllegalArgumentException("typeCount and extensionDepth must be at least 1");
+        }
+
+        String documentation = documentation(annotationSize);
+        StringBuilder sb = BenchmarkSchemas.start();
+        for (int g = 0; g < groupCount; g++) {
+            sb.append(String.format("<xs:group name=\"Group%d\"><xs:sequence>", g));
+            sb.append(String.format("<xs:element name=\"group%dCode\" type=\"xs:token\"/>", g));
+            sb.append(String.format("<xs:element name=\"group%dValue\" type=\"xs:decimal\" minOccurs=\"0\"/>", g));
+            sb.append("</xs:sequence></xs:group>");
+        }
+        for (int a = 0; a < attributeGroupCount; a++) {
+            sb.append(String.format("<xs:attributeGroup name=\"Attributes%d\">", a));
+            sb.append(String.format("<xs:attribute name=\"attributes%dId\" type=\"xs:ID\"/>", a));
+            sb.append(String.format("<xs:attribute name=\"attributes%dVersion\" type=\"xs:positiveInteger\"/>", a));
+            sb.append(String.format("<xs:attribute name=\"attributes%dUri\" type=\"xs:anyURI\"/>", a));
+            sb.append("</xs:attributeGroup>");
+        }
+
+        for (int i = 0; i < typeCount; i++) {
+            // Element and attribute names carry the type's number, so they never clash with inherited ones
+            boolean root = i % extensionDepth == 0;
+            sb.append(String.format("<xs:complexType name=\"Type%d\">", i));
+            sb.append(annotation(documentation));
+            if (!root) {
+                sb.append(String.format("<xs:complexContent><xs:extension base=\"b:Type%d\">", i - 1));
+            }
+            sb.append("<xs:sequence>");
+            sb.append(String.format("<xs:element name=\"name%d\" type=\"xs:string\">%s</xs:element>", i, annotation(documentation)));
+            sb.append(String.format("<xs:element name=\"effective%d\" type=\"xs:dateTime\" minOccurs=\"0\">%s</xs:element>", i, annotation(documentation)));
+            for (int r = 0; r < fanOut; r++) {
+                sb.append(String.format("<xs:element name=\"ref%d_%d\" type=\"b:Type%d\" minOccurs=\"0\" maxOccurs=\"unbounded\">%s</xs:element>",
+                        i, r, reference(i, r), annotation(documentation)));
+            }
+            if (choiceSize > 0) {
+                sb.append("<xs:choice minOccurs=\"0\">");
+                for (int c = 0; c < choiceSize; c++) {
+                    sb.append(String.format("<xs:element name=\"option%d_%d\" type=\"%s\">%s</xs:element>",
+                            i, c, c == 0 ? "xs:boolean" : String.format("b:Type%d", reference(i, fanOut + c)), annotation(documentation)));
+                }
+                sb.append("</xs:choice>");
+            }
+            if (root && groupCount > 0) {
+                sb.append(String.format("<xs:group ref=\"b:Group%d\"/>", (i / extensionDepth) % groupCount));
+            }
+            sb.append("</xs:sequence>");
+            sb.append(String.format("<xs:attribute name=\"status%d\" type=\"xs:string\"/>", i));
+            if (root && attributeGroupCount > 0) {
+                sb.append(String.format("<xs:attributeGroup ref=\"b:Attributes%d\"/>", (i / extensionDepth) % attributeGroupCount));
+            }
+            if (!root) {
+                sb.append("</xs:extension></xs:complexContent>");
+            }
+            sb.append("</xs:complexType>");
+        }
+        return BenchmarkSchemas.end(sb);
+    }
+
+    public void write(File file) throws IOException {
+        Files.write(file.toPath(), generate());
+    }
+
+    // Spread over the whole corpus, earlier and later types alike
+    private int reference(int typeIndex, int referenceIndex) {
+        return (int)(((long)typeIndex * 7919 + (long)(referenceIndex + 1) * 104729) % typeCount);
+    }
+
+    private static String documentation(int size) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("Generated documentation describing the meaning and use of this part of the model. ");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    private static String annotation(String documentation) {
+        return documentation.isEmpty() ? "" : String.format("<xs:annotation><xs:documentation>%s</xs:documentation></xs:annotation>", documentation);
+    }
+}
@@ -0,0 +1,47 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getDocumentation on heavily annotated types, including a documented attribute group shared by every type, with
+ * the documentation copied during generation or deferred until serialization.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentationBenchmark {
+    @Param({"100"})
+    public int typeCount;
+
+    @Param({"200", "5000"})
+    public int documentationSize;
+
+    @Param({"false", "true"})
+    public boolean deferDocumentation;
+
+    private XmlSchema schema;
+    private FhirTypeRegistry fhirTypes;
+    private XsdImportOptions options;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.parse(BenchmarkSchemas.annotated(typeCount, documentationSize));
+        fhirTypes = BenchmarkSchemas.fhirTypes();
+        options = new XsdImportOptions();
+        options.setDeferDocumentation(deferDocumentation);
+    }
+
+    @Benchmark
+    public XsdImporter importAnnotated() {
+        return new XsdImporter(schema, BenchmarkSchemas.MODEL_NAME, fhirTypes, options);
+    }
+}
@@ -0,0 +1,101 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import org.mayoclinic.modeling.xsd.DefinitionEncoder;
+import org.mayoclinic.modeling.xsd.FhirContextProvider;
+import org.mayoclinic.modeling.xsd.OutputFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the CTS2 model in each output format, pretty xml being the original output.
+ *
+ * The definitions are read from the cts2 directory of the repository, set with -Dcts2.dir when the benchmarks are not
+ * run from the benchmark module's directory. The bytes written for each format are printed when the trial starts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Param({"xml", "json"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private List<StructureDefinition> definitions;
+    private DefinitionEncoder encoder;
+
+    @Setup
+    public void setup() throws IOException {
+        FhirContextProvider contextProvider = FhirContextProvider.getInstance();
+        definitions = readDefinitions(new File(System.getProperty("cts2.dir", "../cts2")), contextProvider);
+        encoder = new DefinitionEncoder(contextProvider, OutputFormat.fromName(format), compact);
+
+        System.out.println(String.format("%n%s%s: %d definitions, %d bytes", format, compact ? " compact" : "", definitions.size(), encode()));
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            for (StructureDefinition sd : definitions) {
+                encoder.encode(sd, writer);
+            }
+        }
+        return out.count;
+    }
+
+    private static List<StructureDefinition> readDefinitions(File dir, FhirContextProvider contextProvider) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new FileNotFoundException(String.format("CTS2 definitions not found in %s, set -Dcts2.dir.", dir.getAbsolutePath()));
+        }
+
+        List<StructureDefinition> definitions = new ArrayList<>();
+        readDefinitions(dir, contextProvider, definitions);
+        return definitions;
+    }
+
+    private static void readDefinitions(File dir, FhirContextProvider contextProvider, List<StructureDefinition> definitions) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                readDefinitions(file, contextProvider, definitions);
+            }
+            else if (file.getName().endsWith(".xml")) {
+                try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    definitions.add(contextProvider.getXmlParser().parseResource(StructureDefinition.class, reader));
+                }
+            }
+        }
+    }
+
+    // Discards the output, only counting the bytes the encoded definitions take up
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import ca.uhn.fhir.model.api.IResource;
+import org.mayoclinic.modeling.xsd.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Concurrency stress test of a shared XsdImportEngine: many threads convert a mix of schemas on one engine at the same
+ * time, and every conversion has to produce exactly what the same schema produces alone on an engine of its own.
+ *
+ * The output of a conversion is compared as a fingerprint, the SHA-256 of every definition and ValueSet encoded as
+ * compact JSON, sorted, so any type, element or ValueSet leaking between sessions shows up. Exits with status 1 if a
+ * conversion failed or produced different output. Run from the benchmarks jar:
+ *
+ *   java -cp benchmarks.jar org.mayoclinic.modeling.xsd.benchmark.EngineStressHarness [-threads 8] [-conversions 400] [-parallelism 2]
+ *
+ * The build runs a small fixed-size version of it (EngineStressHarnessTest).
+ */
+public class EngineStressHarness {
+    // Outcome of a run, counted over all conversions
+    static final class Result {
+        private final int failures;
+        private final int mismatches;
+
+        private Result(int failures, int mismatches) {
+            this.failures = failures;
+            this.mismatches = mismatches;
+        }
+
+        int getFailures() {
+            return failures;
+        }
+
+        int getMismatches() {
+            return mismatches;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = getIntParam(args, "threads", 8);
+        int conversions = getIntParam(args, "conversions", 400);
+        int parallelism = getIntParam(args, "parallelism", 2);
+
+        Result result = run(threads, conversions, parallelism);
+        System.out.println(String.format("%d failed, %d with different output", result.getFailures(), result.getMismatches()));
+        if (result.getFailures() > 0 || result.getMismatches() > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Runs the conversions and compares each one with the reference output of its schema
+    static Result run(int threads, int conversions, int parallelism) throws Exception {
+        final List<byte[]> schemas = createSchemas();
+        final FhirTypeRegistry fhirTypes = BenchmarkSchemas.fhirTypes();
+        final XsdImportOptions options = new XsdImportOptions();
+        // Fixed, so output doesn't depend on when it was generated
+        options.setDate(new Date(0));
+
+        // Reference output: each schema alone, on the calling thread of an engine of its own
+        List<String> expected = new ArrayList<>();
+        for (byte[] schema : schemas) {
+            try (XsdImportEngine engine = new XsdImportEngine(fhirTypes, options)) {
+                expected.add(convert(engine, schema));
+            }
+        }
+
+        options.setParallelism(parallelism);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger mismatches = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try (final XsdImportEngine engine = new XsdImportEngine(fhirTypes, options)) {
+            // Every thread starts together, so the first conversions already overlap
+            final CountDownLatch ready = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < conversions; i++) {
+                final byte[] schema = schemas.get(i % schemas.size());
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        ready.await();
+                        return convert(engine, schema);
+                    }
+                }));
+            }
+            ready.countDown();
+
+            for (int i = 0; i < conversions; i++) {
+                try {
+                    if (!results.get(i).get().equals(expected.get(i % schemas.size()))) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+                catch (ExecutionException e) {
+                    if (failures.incrementAndGet() == 1) {
+                        e.getCause().printStackTrace();
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(String.format(Locale.ROOT, "%d conversions of %d schemas on %d threads (parallelism %d) in %d ms, %.1f conversions/sec",
+                conversions, schemas.size(), threads, parallelism, millis, conversions / Math.max(millis / 1000.0, 0.001)));
+        return new Result(failures.get(), mismatches.get());
+    }
+
+    // Schemas of every shape the benchmarks have, so sessions running at the same time exercise different code
+    private static List<byte[]> createSchemas() {
+        List<byte[]> schemas = new ArrayList<>();
+        schemas.add(BenchmarkSchemas.flat(50));
+        schemas.add(BenchmarkSchemas.flat(200));
+        schemas.add(BenchmarkSchemas.extensionChain(40));
+        schemas.add(BenchmarkSchemas.annotated(30, 300));
+        schemas.add(BenchmarkSchemas.inline(40, 5));
+        schemas.add(BenchmarkSchemas.enumerated(40, 7));
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.setTypeCount(150);
+        schemas.add(generator.generate());
+        generator.setExtensionDepth(1);
+        generator.setAnnotationSize(0);
+        schemas.add(generator.generate());
+        return schemas;
+    }
+
+    // Each conversion parses its own copy of the schema, as a service handling requests would
+    private static String convert(XsdImportEngine engine, byte[] schema) throws IOException {
+        final List<IResource> resources = new ArrayList<>();
+        engine.importSchema(BenchmarkSchemas.parse(schema), BenchmarkSchemas.MODEL_NAME, new Consumer<IResource>() {
+            @Override
+            public void accept(IResource resource) {
+                synchronized (resources) {
+                    resources.add(resource);
+                }
+            }
+        });
+
+        DefinitionEncoder encoder = new DefinitionEncoder(FhirContextProvider.getInstance(), OutputFormat.JSON, true);
+        List<String> hashes = new ArrayList<>();
+        for (IResource resource : resources) {
+            StringWriter writer = new StringWriter();
+            encoder.encode(resource, writer);
+            hashes.add(sha256(writer.toString()));
+        }
+        Collections.sort(hashes);
+        return sha256(hashes.toString());
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static int getIntParam(String[] args, String name, int defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-" + name)) {
+                return Integer.parseInt(args[i + 1]);
+            }
+        }
+        return defaultValue;
+    }
+}
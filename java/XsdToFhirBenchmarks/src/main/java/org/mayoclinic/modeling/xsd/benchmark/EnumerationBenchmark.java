@@ -0,0 +1,49 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+import org.mayoclinic.modeling.xsd.ValueSetCache;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Importing enumerated simple types whose code lists repeat across the schema, with a ValueSet cache per import or
+ * one cache shared by every import (as in a batch run, where the ValueSets are built by the first schema).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnumerationBenchmark {
+    @Param({"500"})
+    public int typeCount;
+
+    @Param({"10", "500"})
+    public int codeListCount;
+
+    @Param({"false", "true"})
+    public boolean sharedCache;
+
+    private XmlSchema schema;
+    private FhirTypeRegistry fhirTypes;
+    private ValueSetCache valueSets;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.parse(BenchmarkSchemas.enumerated(typeCount, codeListCount));
+        fhirTypes = BenchmarkSchemas.fhirTypes();
+        valueSets = new ValueSetCache();
+    }
+
+    @Benchmark
+    public XsdImporter importEnumerated() {
+        XsdImportOptions options = new XsdImportOptions();
+        options.setValueSets(sharedCache ? valueSets : null);
+        return new XsdImporter(schema, BenchmarkSchemas.MODEL_NAME, fhirTypes, options);
+    }
+}
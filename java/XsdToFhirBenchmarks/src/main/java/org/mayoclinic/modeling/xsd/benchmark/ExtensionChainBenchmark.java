@@ -0,0 +1,44 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * resolveComplexType on a deep extension chain, where every type extends and references the one before it, with
+ * snapshots holding only each type's own elements or expanded with everything it inherits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtensionChainBenchmark {
+    @Param({"10", "100", "500"})
+    public int depth;
+
+    @Param({"false", "true"})
+    public boolean expandSnapshots;
+
+    private XmlSchema schema;
+    private FhirTypeRegistry fhirTypes;
+    private XsdImportOptions options;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.parse(BenchmarkSchemas.extensionChain(depth));
+        fhirTypes = BenchmarkSchemas.fhirTypes();
+        options = new XsdImportOptions();
+        options.setExpandSnapshots(expandSnapshots);
+    }
+
+    @Benchmark
+    public XsdImporter resolveChain() {
+        return new XsdImporter(schema, BenchmarkSchemas.MODEL_NAME, fhirTypes, options);
+    }
+}
@@ -0,0 +1,43 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Constructing an XsdImporter, which generates all definitions of the schema.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImporterBenchmark {
+    @Param({"100", "1000"})
+    public int typeCount;
+
+    @Param({"1"})
+    public int parallelism;
+
+    private XmlSchema schema;
+    private FhirTypeRegistry fhirTypes;
+    private XsdImportOptions options;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.parse(BenchmarkSchemas.flat(typeCount));
+        fhirTypes = BenchmarkSchemas.fhirTypes();
+        options = new XsdImportOptions();
+        options.setParallelism(parallelism);
+    }
+
+    @Benchmark
+    public XsdImporter construct() {
+        return new XsdImporter(schema, BenchmarkSchemas.MODEL_NAME, fhirTypes, options);
+    }
+}
@@ -0,0 +1,194 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.mayoclinic.modeling.xsd.Main;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.SchemaFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole command line conversion (Main) over generated corpora of growing size and reports the throughput and
+ * peak heap of each size, to catch work that grows faster than the schema.
+ *
+ * Each corpus is checked against the XSD specification before it is converted, and converted a few times with the best
+ * time reported. The exponent of a size is the growth of the time against the growth of the type count since the
+ * previous size: around 1 for linear behavior, 2 for quadratic. With -maxExponent the harness exits with status 1 when
+ * any exponent is higher. Run from the benchmarks jar:
+ *
+ *   java -cp benchmarks.jar org.mayoclinic.modeling.xsd.benchmark.ScalingHarness -fhirPath <spec directory>
+ */
+public class ScalingHarness {
+    private static final String MODEL_NAME = "Corpus";
+
+    public static void main(String[] args) throws Exception {
+        String fhirPath = getParam(args, "fhirPath");
+        if (fhirPath == null) {
+            System.out.println("Scaling harness for the XSD to FHIR converter");
+            System.out.println("-fhirPath: directory of the published Fhir specification (required)");
+            System.out.println("-sizes: comma separated type counts of the corpora (defaults to 250,500,1000,2000,4000)");
+            System.out.println("-runs: conversions of each corpus, the best one is reported (defaults to 3)");
+            System.out.println("-threads: threads used by the conversion (defaults to the number of processors)");
+            System.out.println("-maxExponent: exit with status 1 if the time grows faster than the type count to this power");
+            System.out.println("-keep: directory to keep the generated corpora and output in (defaults to a temporary directory)");
+            System.out.println("-extensionDepth, -fanOut, -attributeGroups, -groups, -choiceSize, -annotationSize: shape of the corpora");
+            return;
+        }
+
+        String sizes = getParam(args, "sizes");
+        int runs = getIntParam(args, "runs", 3);
+        String threads = getParam(args, "threads");
+        String maxExponent = getParam(args, "maxExponent");
+        String keep = getParam(args, "keep");
+
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.setExtensionDepth(getIntParam(args, "extensionDepth", generator.getExtensionDepth()));
+        generator.setFanOut(getIntParam(args, "fanOut", generator.getFanOut()));
+        generator.setAttributeGroupCount(getIntParam(args, "attributeGroups", generator.getAttributeGroupCount()));
+        generator.setGroupCount(getIntParam(args, "groups", generator.getGroupCount()));
+        generator.setChoiceSize(getIntParam(args, "choiceSize", generator.getChoiceSize()));
+        generator.setAnnotationSize(getIntParam(args, "annotationSize", generator.getAnnotationSize()));
+
+        Path workDir = keep != null ? Files.createDirectories(Paths.get(keep)) : Files.createTempDirectory("xsd-corpus");
+        try {
+            // The smallest corpus is converted once first, so class loading and the JIT don't count against it
+            List<Integer> typeCounts = parseSizes(sizes != null ? sizes : "250,500,1000,2000,4000");
+            convert(generateCorpus(generator, typeCounts.get(0), workDir), workDir.resolve("warmup"), fhirPath, threads);
+
+            System.out.println(String.format("%8s %10s %12s %12s %9s", "types", "ms", "types/sec", "peak heap MB", "exponent"));
+            double worstExponent = 0;
+            long previousNanos = 0;
+            int previousTypeCount = 0;
+            for (int typeCount : typeCounts) {
+                File schemaFile = generateCorpus(generator, typeCount, workDir);
+                long bestNanos = Long.MAX_VALUE;
+                long peakHeap = 0;
+                for (int run = 0; run < runs; run++) {
+                    System.gc();
+                    resetPeakHeap();
+                    long start = System.nanoTime();
+                    convert(schemaFile, workDir.resolve(String.format("out%d", typeCount)), fhirPath, threads);
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                    peakHeap = Math.max(peakHeap, getPeakHeap());
+                }
+
+                String exponent = "";
+                if (previousTypeCount > 0) {
+                    double value = Math.log((double)bestNanos / previousNanos) / Math.log((double)typeCount / previousTypeCount);
+                    worstExponent = Math.max(worstExponent, value);
+                    exponent = String.format(Locale.ROOT, "%.2f", value);
+                }
+                System.out.println(String.format(Locale.ROOT, "%8d %10d %12.0f %12.1f %9s", typeCount, TimeUnit.NANOSECONDS.toMillis(bestNanos),
+                        typeCount / (bestNanos / 1e9), peakHeap / (1024.0 * 1024.0), exponent));
+                previousNanos = bestNanos;
+                previousTypeCount = typeCount;
+            }
+
+            if (maxExponent != null && worstExponent > Double.parseDouble(maxExponent)) {
+                System.out.println(String.format(Locale.ROOT, "Time grows with the type count to the power of %.2f, more than %s", worstExponent, maxExponent));
+                System.exit(1);
+            }
+        }
+        finally {
+            if (keep == null) {
+                deleteRecursively(workDir);
+            }
+        }
+    }
+
+    private static File generateCorpus(CorpusGenerator generator, int typeCount, Path workDir) throws IOException, SAXException {
+        generator.setTypeCount(typeCount);
+        File schemaFile = workDir.resolve(String.format("corpus%d.xsd", typeCount)).toFile();
+        generator.write(schemaFile);
+        // A generator mistake would otherwise only show up as an odd measurement
+        SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaFile);
+        return schemaFile;
+    }
+
+    private static void convert(File schemaFile, Path destDir, String fhirPath, String threads) throws Exception {
+        List<String> args = new ArrayList<>();
+        args.add("-source");
+        args.add(schemaFile.getPath());
+        args.add("-dest");
+        args.add(destDir.toString());
+        args.add("-modelName");
+        args.add(MODEL_NAME);
+        args.add("-fhirPath");
+        args.add(fhirPath);
+        if (threads != null) {
+            args.add("-threads");
+            args.add(threads);
+        }
+        Main.main(args.toArray(new String[args.size()]));
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the peaks of the heap pools, which can be a little more than the heap ever held at once
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static List<Integer> parseSizes(String sizes) {
+        List<Integer> typeCounts = new ArrayList<>();
+        for (String size : sizes.split(",")) {
+            typeCounts.add(Integer.parseInt(size.trim()));
+        }
+        if (typeCounts.isEmpty()) {
+            throw new IllegalArgumentException("-sizes must list at least one type count.");
+        }
+        return typeCounts;
+    }
+
+    private static String getParam(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-" + name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private static int getIntParam(String[] args, String name, int defaultValue) {
+        String value = getParam(args, name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,32 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a schema into an XmlSchemaCollection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchemaParsingBenchmark {
+    @Param({"100", "1000"})
+    public int typeCount;
+
+    private byte[] schema;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.flat(typeCount);
+    }
+
+    @Benchmark
+    public XmlSchema parse() {
+        return BenchmarkSchemas.parse(schema);
+    }
+}
@@ -0,0 +1,77 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import org.mayoclinic.modeling.xsd.FhirContextProvider;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing the generated StructureDefinitions the way Main writes them (pretty printed XML).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({"100", "1000"})
+    public int typeCount;
+
+    private List<StructureDefinition> definitions;
+    private FhirContextProvider contextProvider;
+
+    @Setup
+    public void setup() {
+        definitions = new ArrayList<>();
+        for (StructureDefinition sd : XsdImporter.fromSchema(BenchmarkSchemas.parse(BenchmarkSchemas.flat(typeCount)),
+                BenchmarkSchemas.MODEL_NAME, BenchmarkSchemas.fhirTypes(), new XsdImportOptions())) {
+            definitions.add(sd);
+        }
+        contextProvider = FhirContextProvider.getInstance();
+    }
+
+    @Benchmark
+    public long encodePrettyXml() throws IOException {
+        CountingWriter writer = new CountingWriter();
+        for (StructureDefinition sd : definitions) {
+            contextProvider.getPrettyXmlParser().encodeResourceToWriter(sd, writer);
+        }
+        return writer.count;
+    }
+
+    // Discards the output, only counting characters so the encoding can't be optimized away
+    static class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.apache.ws.commons.schema.XmlSchema;
+import org.mayoclinic.modeling.xsd.FhirTypeRegistry;
+import org.mayoclinic.modeling.xsd.XsdImportEngine;
+import org.mayoclinic.modeling.xsd.XsdImportOptions;
+import org.mayoclinic.modeling.xsd.XsdImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small conversions from several threads at once, each as a session of one shared engine or with an importer (and
+ * generation pool) of its own, as a service converting many small schemas would run them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+    @Param({"20"})
+    public int typeCount;
+
+    @Param({"false", "true"})
+    public boolean sharedEngine;
+
+    private byte[] schema;
+    private FhirTypeRegistry fhirTypes;
+    private XsdImportOptions options;
+    private XsdImportEngine engine;
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkSchemas.flat(typeCount);
+        fhirTypes = BenchmarkSchemas.fhirTypes();
+        options = new XsdImportOptions();
+        options.setParallelism(2);
+        engine = new XsdImportEngine(fhirTypes, options);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public XsdImporter convert() {
+        XmlSchema parsed = BenchmarkSchemas.parse(schema);
+        return sharedEngine ? engine.importSchema(parsed, BenchmarkSchemas.MODEL_NAME) : new XsdImporter(parsed, BenchmarkSchemas.MODEL_NAME, fhirTypes, options);
+    }
+}
@@ -0,0 +1,98 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.StructureDefinition;
+import org.apache.ws.commons.schema.XmlSchema;
+import org.apache.ws.commons.schema.XmlSchemaCollection;
+import org.mayoclinic.modeling.xsd.*;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the wall-clock time of a full conversion run using a FhirContext per base profile and per output file
+ * (the original behavior) against a run using a single shared FhirContextProvider. Run from the benchmarks jar:
+ *
+ *   java -cp benchmarks.jar org.mayoclinic.modeling.xsd.benchmark.StartupBenchmark -fhirPath <spec directory>
+ */
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        String fhirPath = getParam(args, "fhirPath");
+        if (fhirPath == null) {
+            System.out.println("Startup benchmark for the XSD to FHIR StructureDefinition Converter");
+            System.out.println("-fhirPath: directory of the published Fhir specification (required)");
+            System.out.println("-types: number of complex types in the generated schema (default 500)");
+            System.out.println("-iterations: number of timed runs for each mode (default 3)");
+            return;
+        }
+
+        int typeCount = getIntParam(args, "types", 500);
+        int iterations = getIntParam(args, "iterations", 3);
+
+        Path workDir = Files.createTempDirectory("xsdtofhir-startup");
+        File schemaFile = workDir.resolve("benchmark.xsd").toFile();
+        Files.write(schemaFile.toPath(), BenchmarkSchemas.flat(typeCount));
+
+        long legacyTotal = 0;
+        long sharedTotal = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            runLegacy(schemaFile, workDir.resolve("legacy-" + i).toFile(), fhirPath);
+            long legacy = System.nanoTime() - start;
+            legacyTotal += legacy;
+
+            start = System.nanoTime();
+            Main.run(new String[] { "-source", schemaFile.getPath(), "-dest", workDir.resolve("shared-" + i).toString(),
+                    "-modelName", BenchmarkSchemas.MODEL_NAME, "-fhirPath", fhirPath }, new FhirContextProvider(FhirContext.forDstu2()));
+            long shared = System.nanoTime() - start;
+            sharedTotal += shared;
+
+            System.out.println(String.format("run %d: context per use %d ms, shared context %d ms", i + 1, legacy / 1000000, shared / 1000000));
+        }
+
+        System.out.println(String.format("%d types, %d runs: context per use avg %d ms, shared context avg %d ms",
+                typeCount, iterations, legacyTotal / iterations / 1000000, sharedTotal / iterations / 1000000));
+    }
+
+    private static String getParam(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-" + name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private static int getIntParam(String[] args, String name, int defaultValue) {
+        String value = getParam(args, name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    // Reproduces the original pipeline, which built a new FhirContext for every profile read and every file written
+    private static void runLegacy(File schemaFile, File destDir, String fhirPath) throws Exception {
+        XmlSchemaCollection schemaCol = new XmlSchemaCollection();
+        schemaCol.setBaseUri(schemaFile.getParent());
+        XmlSchema schema;
+        try (InputStream is = new FileInputStream(schemaFile)) {
+            schema = schemaCol.read(new StreamSource(is));
+        }
+
+        List<StructureDefinition> fhirTypes = new ArrayList<>();
+        for (String typeName : FhirTypeRegistry.getTypeNames()) {
+            try (Reader reader = new FileReader(FhirTypeRegistry.getProfileFile(fhirPath, typeName))) {
+                fhirTypes.add(FhirContext.forDstu2().newXmlParser().parseResource(StructureDefinition.class, reader));
+            }
+        }
+
+        Files.createDirectories(destDir.toPath());
+        for (StructureDefinition sd : XsdImporter.fromSchema(schema, BenchmarkSchemas.MODEL_NAME, fhirTypes, new XsdImportOptions())) {
+            try (Writer writer = new FileWriter(new File(destDir, String.format("%s.xml", sd.getId())))) {
+                FhirContext.forDstu2().newXmlParser().setPrettyPrint(true).encodeResourceToWriter(sd, writer);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.mayoclinic.modeling.xsd.benchmark;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The engine stress harness at a size the build can afford: each schema shape converted several times at once on one
+ * shared engine, every conversion has to match the schema converted alone.
+ */
+public class EngineStressHarnessTest {
+    @Test
+    public void concurrentConversionsMatchSingleConversions() throws Exception {
+        EngineStressHarness.Result result = EngineStressHarness.run(4, 32, 2);
+        assertEquals("failed conversions", 0, result.getFailures());
+        assertEquals("conversions with different output", 0, result.getMismatches());
+    }
+}